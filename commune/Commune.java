@@ -1,6 +1,7 @@
 package commune;
 
-import commune.net.Reactor;
+import commune.net.BufferPool;
+import commune.net.ReactorGroup;
 import commune.peer.Connection;
 import commune.peer.Peer;
 import commune.peer.Servent;
@@ -40,11 +41,12 @@ public class Commune {
     }
     
     public void run(String... args) throws IOException {
-        Reactor reactor = new Reactor();
         Source source = new DirectorySource("/", new File("Content"));
         File storage = new File("Downloads");
         int port = Servent.DEFAULT_PORT;
         int maxConnections = 3;
+        int reactorCount = Runtime.getRuntime().availableProcessors();
+        int shards = 1;
         
         List<InetSocketAddress> peerAddresses =
             new LinkedList<InetSocketAddress>();
@@ -52,7 +54,8 @@ public class Commune {
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("-h") || args[i].equals("--help")) {
                 System.err.println("usage: commune [-p port] [-l limit] " +
-                    "[host[:port]] [host[:port]] [...]");
+                    "[-r reactors] [-s shards] [host[:port]] [host[:port]] " +
+                    "[...]");
                 return;
             }
             
@@ -60,14 +63,19 @@ public class Commune {
                 port = Integer.parseInt(args[++i]);
             } else if (args[i].equals("-l")) {
                 port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-r")) {
+                reactorCount = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-s")) {
+                shards = Integer.parseInt(args[++i]);
             } else {
                 peerAddresses.add(parseAddress(args[i]));
             }
         }
         
-        servent = new Servent(reactor, source, storage, maxConnections);
-        servent.listen(port);
-        Thread reactorThread = reactor.start();
+        ReactorGroup reactors = new ReactorGroup(reactorCount);
+        servent = new Servent(reactors, source, storage, maxConnections);
+        servent.listen(port, shards);
+        reactors.start();
         
         for (InetSocketAddress peer : peerAddresses) {
             servent.getConnection(peer);
@@ -123,7 +131,26 @@ public class Commune {
         }
         
         System.out.println("Shutting down.");
-        reactorThread.interrupt();
+        BufferPool pool = BufferPool.getDefault();
+        if (pool.isTrackingLeaks()) {
+            // Let every connection give its buffers back before checking.
+            for (Connection connection : servent.getConnections())
+                connection.close();
+            pause();
+        }
+        reactors.stop();
+        if (pool.isTrackingLeaks())
+            checkBuffers(pool);
+    }
+    
+    private static void checkBuffers(BufferPool pool) {
+        try {
+            pool.checkLeaks();
+        } catch (IllegalStateException e) {
+            System.err.printf("error: %s%n", e.getMessage());
+            if (e.getCause() != null)
+                e.getCause().printStackTrace();
+        }
     }
     
     private void pause() {
@@ -216,9 +243,24 @@ public class Commune {
             return;
         }
         
+        // A peer that has not hashed its copy yet describes it without a
+        // digest. Such a copy is unknown rather than different: only its
+        // length can be compared with the others.
         Resource blessed = null;
+        long length = -1L;
         for (Resource resource : resources.values()) {
-            if (blessed == null) {
+            if (length < 0L) {
+                length = resource.getLength();
+            } else if (length != resource.getLength()) {
+                showSearchResults(path, resources);
+                return;
+            }
+            
+            if (resource.getDigest() == null &&
+                resource.getRootDigest() == null)
+            {
+                continue;
+            } else if (blessed == null) {
                 blessed = resource;
             } else if (!blessed.equals(resource)) {
                 // Multiple different resources exist for that name; show a
@@ -228,8 +270,23 @@ public class Commune {
             }
         }
         
-        // All the copies of this resource on the network represent the same
-        // file. Download from a random peer.
+        // All the copies of this resource on the network may represent the
+        // same file. If several peers that described it by its digest can
+        // serve pieces of it, download from all of them at once; otherwise,
+        // download from a random peer, whose response carries the digest.
+        List<Peer> swarmPeers = new ArrayList<Peer>();
+        for (Map.Entry<Peer, Resource> e : resources.entrySet()) {
+            if (blessed != null && e.getKey().servesRanges() &&
+                blessed.equals(e.getValue()))
+            {
+                swarmPeers.add(e.getKey());
+            }
+        }
+        if (swarmPeers.size() > 1) {
+            swarmFile(path, blessed, swarmPeers);
+            return;
+        }
+        
         ArrayList<Peer> peers = new ArrayList<Peer>(resources.keySet());
         Peer chosenOne = peers.get(new Random().nextInt(peers.size()));
         
@@ -256,6 +313,22 @@ public class Commune {
         }
     }
     
+    private void swarmFile(String path, Resource resource, List<Peer> peers)
+        throws IOException
+    {
+        try {
+            File downloadedFile = servent.download(resource, peers).get();
+            System.out.printf("Downloaded %s from %d peers to %s.%n", path,
+                peers.size(), downloadedFile);
+        } catch (ExecutionException e) {
+            System.err.printf("Failed to download %s%n", path);
+            e.getCause().printStackTrace();
+        } catch (InterruptedException e) {
+            System.err.printf("Failed to download %s%n", path);
+            e.printStackTrace();
+        }
+    }
+    
     private void requestFile(Connection con, String path) throws IOException {
         try {
             // Start the request
@@ -297,6 +370,9 @@ public class Commune {
             byte[] digest = resource.getDigest();
             if (digest != null)
                 System.out.printf(", %s", toHexString(digest));
+            byte[] rootDigest = resource.getRootDigest();
+            if (rootDigest != null)
+                System.out.printf(", root %s", toHexString(rootDigest));
             System.out.println();
         }
     }
@@ -0,0 +1,219 @@
+package commune.net;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct byte buffers, shared by all connections.
+ *
+ * Buffers are handed out in power-of-two size classes and must be given
+ * back with {@link release} once their contents have been written. Reusing
+ * direct buffers avoids both garbage from short-lived message buffers and
+ * the copy that NIO makes into a temporary direct buffer whenever a heap
+ * buffer is written to a socket.
+ *
+ * The direct memory held by the pool is limited by a budget. When the
+ * budget is spent, requests are served with ordinary heap buffers, which
+ * may be released to the pool just the same.
+ *
+ * If leak tracking is enabled, the pool remembers where each outstanding
+ * buffer was acquired, and {@link checkLeaks} reports buffers that were
+ * never released.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 9;   // 512 bytes
+    private static final int MAX_SHIFT = 20;  // 1 MB
+    private static final BufferPool DEFAULT_POOL = new BufferPool(
+        Long.getLong("commune.buffers.budget", 64L * 1024 * 1024),
+        Boolean.getBoolean("commune.buffers.track"));
+    
+    private Queue<ByteBuffer>[] free;
+    private long budget;
+    private AtomicLong allocated;
+    private AtomicInteger outstanding;
+    private Map<ByteBuffer, Throwable> acquisitions;
+    
+    /**
+     * Creates a new buffer pool without leak tracking.
+     * @param budget the most direct memory, in bytes, the pool may allocate
+     */
+    public BufferPool(long budget) {
+        this(budget, false);
+    }
+    
+    /**
+     * Creates a new buffer pool.
+     * @param budget the most direct memory, in bytes, the pool may allocate
+     * @param trackLeaks if true, remember where each buffer was acquired so
+     *        that leaked buffers can be found
+     */
+    public BufferPool(long budget, boolean trackLeaks) {
+        this.budget = budget;
+        free = newQueues(MAX_SHIFT - MIN_SHIFT + 1);
+        for (int i = 0; i < free.length; i++)
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        allocated = new AtomicLong(0L);
+        outstanding = new AtomicInteger(0);
+        acquisitions = (trackLeaks)
+            ? Collections.synchronizedMap(
+                new IdentityHashMap<ByteBuffer, Throwable>())
+            : null;
+    }
+    
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Queue<ByteBuffer>[] newQueues(int count) {
+        return (Queue<ByteBuffer>[]) new Queue[count];
+    }
+    
+    /**
+     * Returns the pool shared by the whole application. Its budget is read
+     * from the <code>commune.buffers.budget</code> system property, and leak
+     * tracking is enabled by <code>commune.buffers.track</code>.
+     * @return pool shared by the whole application
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT_POOL;
+    }
+    
+    /**
+     * Returns the largest buffer size that the pool will reuse. Larger
+     * buffers can be acquired, but are allocated on the heap each time.
+     */
+    public static int getMaximumSize() {
+        return 1 << MAX_SHIFT;
+    }
+    
+    /**
+     * Acquires a buffer with room for at least the given number of bytes.
+     * The buffer's position is zero and its limit is the requested size.
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = getSizeClass(size);
+        ByteBuffer buffer = null;
+        
+        if (sizeClass >= 0) {
+            buffer = free[sizeClass].poll();
+            if (buffer == null)
+                buffer = allocate(sizeClass);
+        }
+        if (buffer == null)
+            buffer = ByteBuffer.allocate(size);
+        
+        buffer.clear();
+        buffer.limit(size);
+        
+        outstanding.incrementAndGet();
+        if (acquisitions != null)
+            acquisitions.put(buffer, new Throwable("Buffer acquired here"));
+        return buffer;
+    }
+    
+    /**
+     * Returns a buffer to the pool. The caller must not use the buffer
+     * afterwards.
+     * @throws IllegalStateException if leak tracking is enabled and the
+     *         buffer is not outstanding (e.g., it was released twice)
+     */
+    public void release(ByteBuffer buffer) {
+        if (acquisitions != null && acquisitions.remove(buffer) == null) {
+            throw new IllegalStateException("Released a buffer that was " +
+                "not acquired from this pool or was already released.");
+        }
+        outstanding.decrementAndGet();
+        
+        if (buffer.isDirect()) {
+            int sizeClass = getSizeClass(buffer.capacity());
+            if (sizeClass >= 0 && buffer.capacity() == 1 << (sizeClass +
+                MIN_SHIFT))
+            {
+                free[sizeClass].offer(buffer);
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of buffers that have been acquired but not yet
+     * released.
+     * @return number of outstanding buffers
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+    
+    /**
+     * Returns the amount of direct memory, in bytes, allocated by the pool.
+     * @return amount of direct memory allocated by the pool
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+    
+    /**
+     * Returns the most direct memory, in bytes, the pool may allocate.
+     * @return most direct memory the pool may allocate
+     */
+    public long getBudget() {
+        return budget;
+    }
+    
+    /**
+     * Returns true if the pool remembers where each buffer was acquired;
+     * false if otherwise.
+     * @return true if leak tracking is enabled; false if otherwise
+     */
+    public boolean isTrackingLeaks() {
+        return acquisitions != null;
+    }
+    
+    /**
+     * Checks that every acquired buffer has been released.
+     * @throws IllegalStateException if a buffer is outstanding; if leak
+     *         tracking is enabled, its cause shows where the buffer was
+     *         acquired
+     */
+    public void checkLeaks() {
+        int count = outstanding.get();
+        if (count == 0)
+            return;
+        
+        Throwable origin = null;
+        if (acquisitions != null) {
+            synchronized (acquisitions) {
+                Iterator<Throwable> it = acquisitions.values().iterator();
+                if (it.hasNext())
+                    origin = it.next();
+            }
+        }
+        throw new IllegalStateException(count + " buffer(s) were never " +
+            "released.", origin);
+    }
+    
+    /**
+     * Allocates a new direct buffer of the given size class, or returns null
+     * if doing so would exceed the pool's budget.
+     */
+    private ByteBuffer allocate(int sizeClass) {
+        int capacity = 1 << (sizeClass + MIN_SHIFT);
+        
+        if (allocated.addAndGet(capacity) > budget) {
+            allocated.addAndGet(-capacity);
+            return null;
+        }
+        return ByteBuffer.allocateDirect(capacity);
+    }
+    
+    /**
+     * Returns the size class that holds buffers of the given size, or -1 if
+     * the size is too large to be pooled.
+     */
+    private static int getSizeClass(int size) {
+        if (size > (1 << MAX_SHIFT))
+            return -1;
+        if (size <= (1 << MIN_SHIFT))
+            return 0;
+        return (32 - Integer.numberOfLeadingZeros(size - 1)) - MIN_SHIFT;
+    }
+}
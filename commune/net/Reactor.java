@@ -1,11 +1,15 @@
 package commune.net;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * A reactor forms the heart of Commune's networking infrastructure.
@@ -14,24 +18,46 @@ import java.util.concurrent.*;
  * Reactor to "listen" for one or more events on a socket and to call a method
  * on an object when that event happens. The events are defined in the
  * Operation class.
+ * 
+ * The reactor's selector and channel state are only touched by the reactor
+ * thread. Requests made from other threads are queued as commands and
+ * carried out by the reactor thread the next time it wakes up. Timeouts are
+ * kept on a timing wheel owned by the reactor, and also run on the reactor
+ * thread.
  */
 public class Reactor implements Runnable {
+    private static final int TIMEOUT_SLOTS = 512;
+    private static final long TIMEOUT_TICK = 100L;
+    
+    private static final int READ_INDEX = indexOf(SelectionKey.OP_READ);
+    private static final int WRITE_INDEX = indexOf(SelectionKey.OP_WRITE);
+    private static final int CONNECT_INDEX =
+        indexOf(SelectionKey.OP_CONNECT);
+    private static final int ACCEPT_INDEX = indexOf(SelectionKey.OP_ACCEPT);
+    private static final int OPERATION_SLOTS = ACCEPT_INDEX + 1;
+    
     private Selector selector;
-    private ScheduledExecutorService timeoutService;
-    private Thread thread;
-    private transient boolean registering;
+    private TimingWheel timeouts;
+    private Consumer<SelectionKey> dispatcher;
+    private volatile Thread thread;
+    private Queue<Runnable> commands;
+    private AtomicBoolean wakeupPending;
     private Set<CloseListener> closeListeners;
+    private AtomicInteger channelCount;
     
     /**
      * Creates a new reactor.
      */
     public Reactor() throws IOException {
         selector = Selector.open();
-        timeoutService = Executors.newScheduledThreadPool(1);
+        timeouts = new TimingWheel(TIMEOUT_SLOTS, TIMEOUT_TICK);
+        dispatcher = new Dispatcher();
         thread = null;
-        registering = false;
+        commands = new ConcurrentLinkedQueue<Runnable>();
+        wakeupPending = new AtomicBoolean(false);
         closeListeners =
             Collections.synchronizedSet(new HashSet<CloseListener>());
+        channelCount = new AtomicInteger(0);
     }
     
     /**
@@ -39,11 +65,29 @@ public class Reactor implements Runnable {
      * @return the created thread
      */
     public Thread start() {
-        thread = new Thread(this, "Reactor");
+        return start("Reactor");
+    }
+    
+    /**
+     * Starts the reactor on a new dedicated thread with the given name.
+     * @return the created thread
+     */
+    public Thread start(String name) {
+        thread = new Thread(this, name);
         thread.start();
         return thread;
     }
     
+    /**
+     * Returns the number of channels currently registered with this reactor.
+     * This is used by {@link ReactorGroup} to balance connections across its
+     * reactors.
+     * @return number of channels currently registered with this reactor
+     */
+    public int getChannelCount() {
+        return channelCount.get();
+    }
+    
     public boolean addCloseListener(CloseListener listener) {
         return closeListeners.add(listener);
     }
@@ -52,48 +96,111 @@ public class Reactor implements Runnable {
         return closeListeners.remove(listener);
     }
     
+    /**
+     * Sets a listener to be told when one particular channel is closed, in
+     * addition to the reactor's own close listeners. The channel must have
+     * been given to {@link listen} or {@link timeout} first. The change
+     * takes effect asynchronously; this method may be called from any
+     * thread.
+     */
+    public void addCloseListener(final SelectableChannel channel,
+        final CloseListener listener)
+    {
+        execute(new Runnable() {
+            public void run() {
+                SelectionKey key = channel.keyFor(selector);
+                if (key != null)
+                    ((State) key.attachment()).closeListener = listener;
+            }
+        });
+    }
+    
     /**
      * Runs the reactor. This method will not return until the reactor thread
      * is interrupted.
      */
     public void run() {
         while (!Thread.interrupted()) {
+            runCommands();
+            
             try {
-                while (registering) {
-                    try {
-                        Thread.sleep(100L);
-                    } catch (InterruptedException e) {
-                        return;
-                    }
-                }
-                selector.select();
+                // Ready keys are handed straight to the dispatcher, so no
+                // selected-key set or iterator is involved.
+                long delay = timeouts.getDelay();
+                if (delay < 0L)
+                    selector.select(dispatcher);
+                else if (delay == 0L)
+                    selector.selectNow(dispatcher);
+                else
+                    selector.select(dispatcher, delay);
             } catch (IOException e) {
                 System.err.println("=== error in select() ===");
                 e.printStackTrace();
                 return;
             }
+            wakeupPending.set(false);
+            
+            timeouts.advance();
+        }
+    }
+    
+    /**
+     * Dispatches each ready key to the listeners registered for its ready
+     * operations.
+     */
+    private class Dispatcher implements Consumer<SelectionKey> {
+        public void accept(SelectionKey key) {
+            if (!key.isValid())
+                return;
             
-            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            State state = (State) key.attachment();
             try {
-                while (keys.hasNext()) {
-                    SelectionKey key = keys.next();
-                    keys.remove();
-                
-                    State state = (State) key.attachment();
-                    try {
-                        state.dispatch(key.readyOps());
-                    } catch (IOException e) {
-                        if (isNotable(e))
-                            System.err.println(e);
-                        closed(key);
-                        cancel(key.channel());
-                        try {
-                            key.channel().close();
-                        } catch (IOException ignored) { /* ignore */ }
-                    }
-                }
-            } catch (ConcurrentModificationException e) {
-                // somebody stepped on our toes. let's just go through again!
+                state.dispatch(key.readyOps());
+            } catch (IOException e) {
+                if (isNotable(e))
+                    System.err.println(e);
+                doCancel(key.channel(), true);
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) { /* ignore */ }
+            }
+        }
+    }
+    
+    /**
+     * Runs the given command on the reactor thread. If called from the
+     * reactor thread, the command is run immediately; otherwise it is queued
+     * and run before the reactor next waits for events.
+     * 
+     * This is how all changes to the reactor's channels are made, so that
+     * the selector and the channels' state are only ever touched by one
+     * thread. It never blocks.
+     */
+    public void execute(Runnable command) {
+        if (Thread.currentThread() == thread) {
+            command.run();
+            return;
+        }
+        
+        commands.offer(command);
+        // Only the first command queued since the reactor last woke up needs
+        // to interrupt its select().
+        if (wakeupPending.compareAndSet(false, true))
+            selector.wakeup();
+    }
+    
+    private boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+    
+    private void runCommands() {
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                System.err.println("=== error in reactor command ===");
+                e.printStackTrace();
             }
         }
     }
@@ -107,42 +214,98 @@ public class Reactor implements Runnable {
     }
     
     private void closed(SelectionKey key) {
-        closed(key.channel(), ((State) key.attachment()).getAttachment());
+        State state = (State) key.attachment();
+        if (state.closeListener != null)
+            state.closeListener.channelClosed(key.channel(), state.attachment);
+        closed(key.channel(), state.getAttachment());
     }
     
     private boolean isNotable(IOException e) {
         return !(e instanceof PortUnreachableException ||
-            e instanceof ClosedByInterruptException);
+            e instanceof ClosedByInterruptException ||
+            e instanceof EOFException);
     }
     
-    public boolean listen(SelectableChannel channel, Operation operation,
+    /**
+     * Converts a set of operations into selector interest bits.
+     */
+    private static int toBits(EnumSet<Operation> operations) {
+        int bits = 0;
+        for (Operation op : operations)
+            bits |= op.selectorOperation();
+        return bits;
+    }
+    
+    /**
+     * Returns the index into a channel's listener and timer arrays of the
+     * given selector operation bit.
+     */
+    private static int indexOf(int bit) {
+        return Integer.numberOfTrailingZeros(bit);
+    }
+    
+    /**
+     * Asks the reactor to call the given listener when the given operation
+     * is ready on the channel. The change takes effect asynchronously; this
+     * method may be called from any thread.
+     */
+    public void listen(SelectableChannel channel, Operation operation,
         Listener listener)
     {
-        return listen(channel, EnumSet.of(operation), listener);
+        listen(channel, operation.selectorOperation(), listener);
     }
     
-    public boolean listen(SelectableChannel channel,
+    /**
+     * Asks the reactor to call the given listener when any of the given
+     * operations are ready on the channel. The change takes effect
+     * asynchronously; this method may be called from any thread.
+     */
+    public void listen(SelectableChannel channel,
         EnumSet<Operation> operations, Listener listener)
+    {
+        listen(channel, toBits(operations), listener);
+    }
+    
+    private void listen(final SelectableChannel channel, final int ops,
+        final Listener listener)
+    {
+        if (inReactorThread()) {
+            doListen(channel, ops, listener);
+            return;
+        }
+        
+        execute(new Runnable() {
+            public void run() {
+                doListen(channel, ops, listener);
+            }
+        });
+    }
+    
+    private void doListen(SelectableChannel channel, int ops,
+        Listener listener)
     {
         SelectionKey key = channel.keyFor(selector);
         State state;
         int interestOps = 0;
         
         if (key != null) {
+            if (!key.isValid())
+                return;
             interestOps = key.interestOps();
             state = (State) key.attachment();
         } else {
             state = new State(channel);
         }
         
-        for (Operation op : operations) {
-            state.setListener(op, listener);
-            interestOps |= op.selectorOperation();
-        }
+        for (int bits = ops; bits != 0; bits &= bits - 1)
+            state.setListener(indexOf(bits), listener);
         
-        return setOperations(channel, key, interestOps, state);
+        setOperations(channel, key, interestOps | ops, state);
     }
     
+    /**
+     * Returns the object attached to the given channel, if any.
+     */
     public Object getAttachment(SelectableChannel channel) {
         SelectionKey key = channel.keyFor(selector);
         if (key != null) {
@@ -152,137 +315,243 @@ public class Reactor implements Runnable {
         return null;
     }
     
-    public boolean attach(SelectableChannel channel, Object attachment) {
-        SelectionKey key = channel.keyFor(selector);
-        if (key != null) {
-            State state = (State) key.attachment();
-            state.setAttachment(attachment);
-            return true;
-        }
-        return false;
+    /**
+     * Attaches an object to the given channel; the attachment is passed to
+     * close listeners when the channel is closed. The channel must have been
+     * given to {@link listen} or {@link timeout} first. The change takes
+     * effect asynchronously; this method may be called from any thread.
+     */
+    public void attach(final SelectableChannel channel,
+        final Object attachment)
+    {
+        execute(new Runnable() {
+            public void run() {
+                SelectionKey key = channel.keyFor(selector);
+                if (key != null) {
+                    State state = (State) key.attachment();
+                    state.setAttachment(attachment);
+                }
+            }
+        });
     }
     
-    private boolean setOperations(SelectableChannel channel, SelectionKey key,
+    private void setOperations(SelectableChannel channel, SelectionKey key,
         int interestOps, State state)
     {
         try {
             if (key != null) {
                 key.interestOps(interestOps);
             } else {
-                synchronized (this) {
-                    registering = true;
-                    try {
-                        selector.wakeup();
-                        channel.register(selector, interestOps, state);
-                    } finally {
-                        registering = false;
-                    }
-                }
+                channel.register(selector, interestOps, state);
+                channelCount.incrementAndGet();
             }
-            return true;
         } catch (CancelledKeyException e) {
-            e.printStackTrace();
-            return false;
+            // The channel was cancelled before this change could be made.
         } catch (ClosedChannelException e) {
-            e.printStackTrace();
-            return false;
+            // The channel was closed before this change could be made.
         }
     }
     
-    public boolean timeout(SelectableChannel channel, Operation operation,
+    /**
+     * Asks the reactor to run the given task if the given operation does not
+     * become ready on the channel within <code>delay</code> seconds. The
+     * change takes effect asynchronously; this method may be called from any
+     * thread.
+     */
+    public void timeout(SelectableChannel channel, Operation operation,
         int delay, TimeoutTask task)
     {
-        return timeout(channel, EnumSet.of(operation), delay, task);
+        timeout(channel, operation.selectorOperation(), delay * 1000L, task);
     }
     
-    public boolean timeout(SelectableChannel channel,
+    public void timeout(SelectableChannel channel,
         EnumSet<Operation> operations, int delay, TimeoutTask task)
+    {
+        timeout(channel, toBits(operations), delay * 1000L, task);
+    }
+    
+    /**
+     * Asks the reactor to run the given task if any of the given operations
+     * do not become ready on the channel within the given delay. Re-arming
+     * an existing timeout does not allocate when done from the reactor
+     * thread. The change takes effect asynchronously; this method may be
+     * called from any thread.
+     */
+    public void timeout(SelectableChannel channel,
+        EnumSet<Operation> operations, long delay, TimeUnit unit,
+        TimeoutTask task)
+    {
+        timeout(channel, toBits(operations), unit.toMillis(delay), task);
+    }
+    
+    private void timeout(final SelectableChannel channel, final int ops,
+        final long delay, final TimeoutTask task)
+    {
+        if (inReactorThread()) {
+            doTimeout(channel, ops, delay, task);
+            return;
+        }
+        
+        execute(new Runnable() {
+            public void run() {
+                doTimeout(channel, ops, delay, task);
+            }
+        });
+    }
+    
+    private void doTimeout(SelectableChannel channel, int ops, long delay,
+        TimeoutTask task)
     {
         SelectionKey key = channel.keyFor(selector);
         State state;
         int interestOps = 0;
         
         if (key != null) {
+            if (!key.isValid())
+                return;
             interestOps = key.interestOps();
             state = (State) key.attachment();
         } else {
             state = new State(channel);
         }
         
-        for (Operation op : operations) {
-            state.setTimeout(op, task, delay);
-            interestOps |= op.selectorOperation();
-        }
+        for (int bits = ops; bits != 0; bits &= bits - 1)
+            state.setTimeout(indexOf(bits), task, delay);
         
-        return setOperations(channel, key, interestOps, state);
+        setOperations(channel, key, interestOps | ops, state);
     }
     
-    public boolean remove(SelectableChannel channel, Operation operation) {
-        return remove(channel, EnumSet.of(operation));
+    /**
+     * Stops listening for the given operation on the channel. The change
+     * takes effect asynchronously; this method may be called from any
+     * thread.
+     */
+    public void remove(SelectableChannel channel, Operation operation) {
+        remove(channel, operation.selectorOperation());
     }
     
-    public boolean remove(SelectableChannel channel,
+    public void remove(SelectableChannel channel,
         EnumSet<Operation> operations)
     {
+        remove(channel, toBits(operations));
+    }
+    
+    private void remove(final SelectableChannel channel, final int ops) {
+        if (inReactorThread()) {
+            doRemove(channel, ops);
+            return;
+        }
+        
+        execute(new Runnable() {
+            public void run() {
+                doRemove(channel, ops);
+            }
+        });
+    }
+    
+    private void doRemove(SelectableChannel channel, int ops) {
         SelectionKey key = channel.keyFor(selector);
         
-        if (key == null)
-            return false;
+        if (key == null || !key.isValid())
+            return;
         
         State state = (State) key.attachment();
-        int interestOps = key.interestOps();
-        
-        for (Operation op : operations) {
-            interestOps &= ~(op.selectorOperation());
-            state.removeListener(op);
-            state.clearTimeout(op);
+        for (int bits = ops; bits != 0; bits &= bits - 1) {
+            int index = indexOf(bits);
+            state.setListener(index, null);
+            state.clearTimeout(index);
         }
         
-        try {
-            synchronized (this) {
-                registering = true;
-                try {
-                    selector.wakeup();
-                    key.interestOps(interestOps);
-                } finally {
-                    registering = false;
-                }
+        key.interestOps(key.interestOps() & ~ops);
+    }
+    
+    /**
+     * Runs the given task on the reactor thread once the given delay has
+     * passed. This method may be called from any thread.
+     */
+    public void schedule(final Runnable task, final long delay,
+        TimeUnit unit)
+    {
+        final long millis = unit.toMillis(delay);
+        
+        execute(new Runnable() {
+            public void run() {
+                timeouts.schedule(new TaskTimer(task), millis);
             }
-            return true;
-        } catch (CancelledKeyException e) {
-            e.printStackTrace();
-            return false;
-        }
+        });
     }
     
     public void cancel(SelectableChannel channel) {
         cancel(channel, false);
     }
     
-    public void cancel(SelectableChannel channel, boolean closing) {
+    /**
+     * Stops managing the given channel. If <code>closing</code> is true, the
+     * reactor's close listeners are notified. The change takes effect
+     * asynchronously; this method may be called from any thread.
+     */
+    public void cancel(final SelectableChannel channel, final boolean closing)
+    {
+        if (inReactorThread()) {
+            doCancel(channel, closing);
+            return;
+        }
+        
+        execute(new Runnable() {
+            public void run() {
+                doCancel(channel, closing);
+            }
+        });
+    }
+    
+    private void doCancel(SelectableChannel channel, boolean closing) {
         SelectionKey key = channel.keyFor(selector);
         
         if (key == null)
             return;
+        
+        State state = (State) key.attachment();
+        if (!state.cancel())
+            return;
         if (closing)
             closed(key);
         
-        ((State) key.attachment()).clearTimeouts();
+        channelCount.decrementAndGet();
         key.cancel();
     }
     
+    /**
+     * Stops managing the given channel, notifies the reactor's close
+     * listeners, and closes the channel. Any IOExceptions encountered while
+     * closing the channel are silently ignored. The channel is closed
+     * asynchronously; this method may be called from any thread.
+     */
+    public void close(final SelectableChannel channel) {
+        execute(new Runnable() {
+            public void run() {
+                doCancel(channel, true);
+                try {
+                    channel.close();
+                } catch (IOException ignored) { /* ignore */ }
+            }
+        });
+    }
+    
     private class State {
         private SelectableChannel channel;
-        private EnumMap<Operation, Listener> listeners;
-        private EnumMap<Operation, ScheduledFuture<?>> timeoutTasks;
-        private Object attachment;
+        private Listener[] listeners;
+        private ChannelTimer[] timers;
+        private volatile Object attachment;
+        private CloseListener closeListener;
+        private boolean cancelled;
         
         public State(SelectableChannel channel) {
             this.channel = channel;
-            listeners = new EnumMap<Operation, Listener>(Operation.class);
-            timeoutTasks =
-                new EnumMap<Operation, ScheduledFuture<?>>(Operation.class);
+            listeners = new Listener[OPERATION_SLOTS];
+            timers = new ChannelTimer[OPERATION_SLOTS];
             attachment = null;
+            closeListener = null;
+            cancelled = false;
         }
         
         /**
@@ -297,71 +566,140 @@ public class Reactor implements Runnable {
             attachment = newAttachment;
         }
         
+        /**
+         * Marks the channel as no longer managed by the reactor.
+         * @return true if the channel had not already been cancelled
+         */
+        public boolean cancel() {
+            boolean wasActive = !cancelled;
+            cancelled = true;
+            clearTimeouts();
+            return wasActive;
+        }
+        
+        /**
+         * Calls the listeners for each of the ready operations, in the same
+         * order as the Operation enumeration.
+         * 
+         * Each operation is dispatched from its own call site, so that each
+         * site only ever sees one or two listener classes (e.g., a message
+         * reader for READ and a message writer for WRITE) and stays cheap to
+         * call.
+         */
         public void dispatch(int readyOps) throws IOException {
-            for (Map.Entry<Operation, Listener> e : listeners.entrySet()) {
-                Operation op = e.getKey();
-                
-                if ((readyOps & op.selectorOperation()) != 0) {
-                    Listener listener = e.getValue();
-                    
-                    clearTimeout(op);
-                    listener.ready(channel);
-                }
+            Listener listener;
+            
+            if ((readyOps & SelectionKey.OP_READ) != 0 &&
+                (listener = listeners[READ_INDEX]) != null)
+            {
+                clearTimeout(READ_INDEX);
+                listener.ready(channel);
+            }
+            if ((readyOps & SelectionKey.OP_WRITE) != 0 && !cancelled &&
+                (listener = listeners[WRITE_INDEX]) != null)
+            {
+                clearTimeout(WRITE_INDEX);
+                listener.ready(channel);
+            }
+            if ((readyOps & SelectionKey.OP_CONNECT) != 0 && !cancelled &&
+                (listener = listeners[CONNECT_INDEX]) != null)
+            {
+                clearTimeout(CONNECT_INDEX);
+                listener.ready(channel);
+            }
+            if ((readyOps & SelectionKey.OP_ACCEPT) != 0 && !cancelled &&
+                (listener = listeners[ACCEPT_INDEX]) != null)
+            {
+                clearTimeout(ACCEPT_INDEX);
+                listener.ready(channel);
             }
         }
         
-        public void setListener(Operation op, Listener listener) {
-            listeners.put(op, listener);
+        public void setListener(int index, Listener listener) {
+            listeners[index] = listener;
         }
         
-        public void removeListener(Operation op) {
-            listeners.remove(op);
+        /**
+         * Arms (or re-arms) the timeout for the operation at the given
+         * index. The timer for each operation is created once and reused
+         * afterwards.
+         */
+        public void setTimeout(int index, TimeoutTask task, long delay) {
+            ChannelTimer timer = timers[index];
+            if (timer == null) {
+                timer = new ChannelTimer(this);
+                timers[index] = timer;
+            }
+            
+            timer.task = task;
+            timeouts.schedule(timer, delay);
         }
         
-        public void setTimeout(Operation op, final TimeoutTask task,
-            int delay)
-        {
-            clearTimeout(op);
-            
-            Runnable runnable = new Runnable() {
-                public void run() {
-                    try {
-                        task.timedOut(channel);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        cancel(channel);
-                        
-                        try {
-                            channel.close();
-                        } catch (IOException ignored) { /* ignore */ }
-                    }
-                }
-            };
-            
-            ScheduledFuture<?> future = timeoutService.schedule(runnable,
-                delay, TimeUnit.SECONDS);
+        public boolean clearTimeout(int index) {
+            ChannelTimer timer = timers[index];
+            return (timer != null && timer.isArmed())
+                ? timeouts.cancel(timer)
+                : false;
         }
         
-        public boolean clearTimeout(Operation op) {
-            ScheduledFuture<?> future = timeoutTasks.get(op);
-            if (future != null) {
-                if (!future.isCancelled()) {
-                    if (!future.cancel(true)) {
-                        System.err.println("warning: failed to cancel " +
-                            "existing timeout task");
-                        return false;
-                    }
-                }
-                
-                timeoutTasks.remove(op);
+        public void clearTimeouts() {
+            for (ChannelTimer timer : timers) {
+                if (timer != null)
+                    timeouts.cancel(timer);
+            }
+        }
+    }
+    
+    /**
+     * A timeout on one of a channel's operations. Expires on the reactor
+     * thread.
+     */
+    private class ChannelTimer extends TimingWheel.Timer {
+        private State state;
+        private TimeoutTask task;
+        
+        public ChannelTimer(State state) {
+            this.state = state;
+            task = null;
+        }
+        
+        protected void expire() {
+            SelectableChannel channel = state.channel;
+            boolean failed = false;
+            
+            try {
+                task.timedOut(channel);
+            } catch (IOException e) {
+                e.printStackTrace();
+                failed = true;
             }
             
-            return (future != null);
+            if (failed || !channel.isOpen()) {
+                doCancel(channel, true);
+                try {
+                    channel.close();
+                } catch (IOException ignored) { /* ignore */ }
+            }
+        }
+    }
+    
+    /**
+     * A one-off task scheduled with {@link schedule}.
+     */
+    private static class TaskTimer extends TimingWheel.Timer {
+        private Runnable task;
+        
+        public TaskTimer(Runnable task) {
+            this.task = task;
         }
         
-        public void clearTimeouts() {
-            for (Operation op : timeoutTasks.keySet())
-                clearTimeout(op);
+        protected void expire() {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("=== error in scheduled task ===");
+                e.printStackTrace();
+            }
         }
     }
 }
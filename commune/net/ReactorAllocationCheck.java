@@ -0,0 +1,100 @@
+package commune.net;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectableChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that the reactor's steady-state dispatch path does not allocate.
+ *
+ * A pipe is registered with a reactor for reading, and one byte at a time
+ * is written into it. Each byte is one ready event; its listener reads the
+ * byte and re-arms the read timeout, as a connection's reader does. After
+ * a warm-up, the bytes allocated by the reactor thread are counted over a
+ * run of events. The check exits with a nonzero status if any event
+ * allocated on average.
+ *
+ * Run it with <code>java commune.net.ReactorAllocationCheck [events]</code>.
+ */
+public class ReactorAllocationCheck {
+    private static final int WARMUP_EVENTS = 200000;
+    private static final int DEFAULT_EVENTS = 100000;
+    
+    private Reactor reactor;
+    private Pipe pipe;
+    private AtomicLong handled;
+    
+    private ReactorAllocationCheck() throws IOException {
+        reactor = new Reactor();
+        pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        handled = new AtomicLong(0L);
+    }
+    
+    /**
+     * Reads each byte as it arrives and re-arms the channel's timeout.
+     */
+    private class Reader implements Listener {
+        private ByteBuffer buffer = ByteBuffer.allocate(16);
+        
+        public void ready(SelectableChannel channel) throws IOException {
+            buffer.clear();
+            pipe.source().read(buffer);
+            reactor.timeout(channel, Operation.READ, 30, TimeoutTask.CLOSE);
+            handled.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Sends the given number of events through the reactor, one at a time.
+     */
+    private void drive(int events) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        for (int i = 0; i < events; i++) {
+            long expected = handled.get() + 1;
+            one.clear();
+            pipe.sink().write(one);
+            while (handled.get() < expected)
+                Thread.onSpinWait();
+        }
+    }
+    
+    private long run(int events) throws IOException, InterruptedException {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+        
+        reactor.listen(pipe.source(), Operation.READ, new Reader());
+        Thread thread = reactor.start("Reactor");
+        try {
+            drive(WARMUP_EVENTS);
+            long before = threads.getThreadAllocatedBytes(thread.getId());
+            drive(events);
+            long after = threads.getThreadAllocatedBytes(thread.getId());
+            return after - before;
+        } finally {
+            thread.interrupt();
+            thread.join();
+            pipe.source().close();
+            pipe.sink().close();
+        }
+    }
+    
+    public static void main(String... args) throws Exception {
+        int events = (args.length > 0)
+            ? Integer.parseInt(args[0])
+            : DEFAULT_EVENTS;
+        
+        long allocated = new ReactorAllocationCheck().run(events);
+        System.out.printf("%d bytes allocated over %d events " +
+            "(%.3f bytes/event)%n", allocated, events,
+            (double) allocated / events);
+        if (allocated >= events) {
+            System.err.println("The reactor allocates while dispatching.");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package commune.net;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed group of reactors, each running on its own thread.
+ *
+ * A single reactor serves all of its channels from one thread, which limits
+ * a busy peer to one processor core. A reactor group spreads channels across
+ * several reactors instead. Each channel is handed to exactly one reactor
+ * for its whole life, so everything that is driven by that channel's events
+ * (e.g., a connection and its message broker) still runs on a single thread.
+ */
+public class ReactorGroup implements Iterable<Reactor> {
+    private Reactor[] reactors;
+    private Thread[] threads;
+    private boolean leastLoaded;
+    private AtomicInteger nextIndex;
+    
+    /**
+     * Creates a new group of reactors that hands out its reactors in
+     * round-robin order.
+     * @param size the number of reactors (and threads) in the group
+     */
+    public ReactorGroup(int size) throws IOException {
+        this(size, false);
+    }
+    
+    /**
+     * Creates a new group of reactors.
+     * @param size the number of reactors (and threads) in the group
+     * @param leastLoaded if true, {@link next} returns the reactor with the
+     *        fewest registered channels; otherwise reactors are handed out in
+     *        round-robin order
+     */
+    public ReactorGroup(int size, boolean leastLoaded) throws IOException {
+        if (size < 1) {
+            throw new IllegalArgumentException("A reactor group must " +
+                "contain at least one reactor.");
+        }
+        
+        reactors = new Reactor[size];
+        for (int i = 0; i < size; i++)
+            reactors[i] = new Reactor();
+        init(leastLoaded);
+    }
+    
+    /**
+     * Creates a new round-robin group out of existing reactors.
+     */
+    public ReactorGroup(Reactor... reactors) {
+        if (reactors.length < 1) {
+            throw new IllegalArgumentException("A reactor group must " +
+                "contain at least one reactor.");
+        }
+        
+        this.reactors = reactors.clone();
+        init(false);
+    }
+    
+    private void init(boolean leastLoaded) {
+        this.leastLoaded = leastLoaded;
+        threads = null;
+        nextIndex = new AtomicInteger(0);
+    }
+    
+    /**
+     * Starts every reactor in the group on its own dedicated thread.
+     */
+    public synchronized void start() {
+        if (threads != null)
+            return;
+        
+        threads = new Thread[reactors.length];
+        for (int i = 0; i < reactors.length; i++)
+            threads[i] = reactors[i].start("Reactor-" + i);
+    }
+    
+    /**
+     * Stops every reactor in the group by interrupting its thread.
+     */
+    public synchronized void stop() {
+        if (threads == null)
+            return;
+        
+        for (Thread thread : threads)
+            thread.interrupt();
+        threads = null;
+    }
+    
+    /**
+     * Returns the number of reactors in the group.
+     * @return number of reactors in the group
+     */
+    public int size() {
+        return reactors.length;
+    }
+    
+    /**
+     * Returns the reactor at the given index.
+     */
+    public Reactor get(int index) {
+        return reactors[index];
+    }
+    
+    /**
+     * Chooses the reactor that should manage a new channel.
+     * @return the chosen reactor
+     */
+    public Reactor next() {
+        if (reactors.length == 1)
+            return reactors[0];
+        
+        if (leastLoaded) {
+            Reactor best = reactors[0];
+            int bestCount = best.getChannelCount();
+            for (int i = 1; i < reactors.length; i++) {
+                int count = reactors[i].getChannelCount();
+                if (count < bestCount) {
+                    best = reactors[i];
+                    bestCount = count;
+                }
+            }
+            return best;
+        }
+        
+        int index = nextIndex.getAndIncrement() & Integer.MAX_VALUE;
+        return reactors[index % reactors.length];
+    }
+    
+    /**
+     * Adds the given close listener to every reactor in the group.
+     */
+    public void addCloseListener(CloseListener listener) {
+        for (Reactor reactor : reactors)
+            reactor.addCloseListener(listener);
+    }
+    
+    /**
+     * Removes the given close listener from every reactor in the group.
+     */
+    public void removeCloseListener(CloseListener listener) {
+        for (Reactor reactor : reactors)
+            reactor.removeCloseListener(listener);
+    }
+    
+    public Iterator<Reactor> iterator() {
+        return Collections.unmodifiableList(Arrays.asList(reactors)).
+            iterator();
+    }
+}
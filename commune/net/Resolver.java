@@ -0,0 +1,296 @@
+package commune.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+/**
+ * A caching host name resolver.
+ *
+ * Java's own name lookups block the calling thread, which must never be a
+ * reactor thread. The resolver performs lookups on its own small pool of
+ * threads and caches the results: successful lookups for a while, and
+ * failed ones for a shorter while, so that a dead host name does not cost a
+ * lookup every time it is mentioned.
+ *
+ * IP address literals are never looked up.
+ */
+public class Resolver {
+    private static final Pattern IPV4_LITERAL =
+        Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+    private static final Resolver DEFAULT_RESOLVER =
+        new Resolver(5 * 60 * 1000L, 30 * 1000L, 2);
+    
+    /**
+     * An interface for objects that want to know the result of an
+     * asynchronous lookup.
+     */
+    public interface Callback {
+        /**
+         * Called when the host name has been resolved.
+         */
+        public void resolved(String host, InetAddress[] addresses);
+        
+        /**
+         * Called when the host name could not be resolved.
+         */
+        public void failed(String host, UnknownHostException error);
+    }
+    
+    private long ttl;
+    private long negativeTTL;
+    private Map<String, Entry> entries;
+    private Map<InetAddress, String> names;
+    private Set<InetAddress> pendingNames;
+    private ExecutorService lookupService;
+    
+    /**
+     * Creates a new resolver.
+     * @param ttl the number of milliseconds for which a successful lookup is
+     *        cached
+     * @param negativeTTL the number of milliseconds for which a failed
+     *        lookup is cached
+     * @param threads the number of threads on which to perform lookups
+     */
+    public Resolver(long ttl, long negativeTTL, int threads) {
+        this.ttl = ttl;
+        this.negativeTTL = negativeTTL;
+        entries = new HashMap<String, Entry>();
+        names = new ConcurrentHashMap<InetAddress, String>();
+        pendingNames = Collections.synchronizedSet(new HashSet<InetAddress>());
+        lookupService = Executors.newFixedThreadPool(threads,
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Resolver");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+    
+    /**
+     * Returns the resolver shared by the whole application.
+     * @return resolver shared by the whole application
+     */
+    public static Resolver getDefault() {
+        return DEFAULT_RESOLVER;
+    }
+    
+    /**
+     * Returns true if the given host is an IP address literal, which can be
+     * converted to an address without a lookup.
+     */
+    public static boolean isLiteral(String host) {
+        return host.indexOf(':') >= 0 || IPV4_LITERAL.matcher(host).matches();
+    }
+    
+    /**
+     * Returns the cached addresses of the given host without blocking.
+     * @return the host's addresses, or <code>null</code> if they are not
+     *         known (in which case a lookup is started in the background)
+     */
+    public InetAddress[] getCached(String host) {
+        if (isLiteral(host))
+            return resolveLiteral(host);
+        
+        synchronized (entries) {
+            Entry entry = entries.get(host);
+            if (entry == null || entry.isExpired())
+                startLookup(host, null);
+            
+            // A stale result is better than none while it is refreshed.
+            return (entry != null) ? entry.addresses : null;
+        }
+    }
+    
+    /**
+     * Resolves the given host, blocking until the lookup finishes if the
+     * result is not cached.
+     * @throws UnknownHostException if the host could not be resolved
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        final UnknownHostException[] error = new UnknownHostException[1];
+        final InetAddress[][] found = new InetAddress[1][];
+        final CountDownLatch done = new CountDownLatch(1);
+        
+        resolve(host, new Callback() {
+            public void resolved(String host, InetAddress[] addresses) {
+                found[0] = addresses;
+                done.countDown();
+            }
+            
+            public void failed(String host, UnknownHostException e) {
+                error[0] = e;
+                done.countDown();
+            }
+        });
+        
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            throw new UnknownHostException(host + " (interrupted)");
+        }
+        
+        if (error[0] != null)
+            throw error[0];
+        return found[0];
+    }
+    
+    /**
+     * Resolves the given host without blocking. If the result is cached,
+     * the callback is called immediately on the calling thread; otherwise it
+     * is called later on one of the resolver's threads.
+     */
+    public void resolve(String host, Callback callback) {
+        if (isLiteral(host)) {
+            InetAddress[] addresses = resolveLiteral(host);
+            if (addresses != null) {
+                callback.resolved(host, addresses);
+            } else {
+                callback.failed(host, new UnknownHostException(host));
+            }
+            return;
+        }
+        
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(host);
+            if (entry == null || !entry.resolved || entry.isExpired()) {
+                startLookup(host, callback);
+                return;
+            }
+        }
+        entry.notify(host, callback);
+    }
+    
+    /**
+     * Returns the name of the given address without blocking.
+     * @return the address's cached host name; if the name is not known, the
+     *         address's textual form is returned and a reverse lookup is
+     *         started in the background
+     */
+    public String getHostName(final InetAddress address) {
+        String name = names.get(address);
+        if (name != null)
+            return name;
+        
+        if (pendingNames.add(address)) {
+            lookupService.execute(new Runnable() {
+                public void run() {
+                    names.put(address, address.getCanonicalHostName());
+                    pendingNames.remove(address);
+                }
+            });
+        }
+        return address.getHostAddress();
+    }
+    
+    private InetAddress[] resolveLiteral(String host) {
+        try {
+            // No lookup is made for literals.
+            return InetAddress.getAllByName(host);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Starts looking up the given host (unless a lookup is already under
+     * way), and arranges for the callback to be told of the result. Must be
+     * called while holding the lock on <code>entries</code>.
+     */
+    private void startLookup(final String host, Callback callback) {
+        Entry entry = entries.get(host);
+        if (entry != null && entry.waiting != null) {
+            // A lookup is already in progress.
+            if (callback != null)
+                entry.waiting.add(callback);
+            return;
+        }
+        
+        final Entry pending = new Entry();
+        pending.waiting = new LinkedList<Callback>();
+        if (callback != null)
+            pending.waiting.add(callback);
+        if (entry != null) {
+            // Keep serving the stale result until the new one arrives.
+            pending.addresses = entry.addresses;
+            pending.error = entry.error;
+            pending.expires = entry.expires;
+            pending.resolved = entry.resolved;
+        }
+        entries.put(host, pending);
+        
+        lookupService.execute(new Runnable() {
+            public void run() {
+                InetAddress[] addresses = null;
+                UnknownHostException error = null;
+                
+                try {
+                    addresses = InetAddress.getAllByName(host);
+                } catch (UnknownHostException e) {
+                    error = e;
+                }
+                
+                List<Callback> waiting;
+                synchronized (entries) {
+                    pending.addresses = addresses;
+                    pending.error = error;
+                    pending.expires = now() +
+                        ((error == null) ? ttl : negativeTTL);
+                    pending.resolved = true;
+                    waiting = pending.waiting;
+                    pending.waiting = null;
+                }
+                
+                for (Callback waiter : waiting)
+                    pending.notify(host, waiter);
+            }
+        });
+    }
+    
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+    
+    /**
+     * A cached lookup result.
+     */
+    private static class Entry {
+        InetAddress[] addresses;
+        UnknownHostException error;
+        long expires;
+        boolean resolved;
+        List<Callback> waiting;
+        
+        public Entry() {
+            addresses = null;
+            error = null;
+            expires = 0L;
+            resolved = false;
+            waiting = null;
+        }
+        
+        /**
+         * Returns true if the entry needs to be looked up (again); false if
+         * it is still fresh or a lookup is already in progress.
+         */
+        public boolean isExpired() {
+            if (waiting != null)
+                return false;
+            return !resolved || now() - expires >= 0L;
+        }
+        
+        public void notify(String host, Callback callback) {
+            if (addresses != null) {
+                callback.resolved(host, addresses);
+            } else {
+                callback.failed(host, (error != null)
+                    ? error
+                    : new UnknownHostException(host));
+            }
+        }
+    }
+}
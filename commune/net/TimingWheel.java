@@ -0,0 +1,227 @@
+package commune.net;
+
+/**
+ * A hashed timing wheel: a timer facility in which arming, re-arming and
+ * cancelling a timer are all constant-time operations.
+ *
+ * Time is divided into ticks. The wheel has a fixed number of slots, and a
+ * timer that expires at a given tick lives in the doubly-linked list of the
+ * slot that the tick hashes to. Timers are intrusive list nodes, so a timer
+ * can be re-armed any number of times without allocating.
+ *
+ * A timing wheel is not thread-safe; a reactor owns its wheel and only
+ * touches it from the reactor thread.
+ */
+class TimingWheel {
+    /**
+     * A timer that can be scheduled on a timing wheel.
+     */
+    static abstract class Timer {
+        private Timer previous;
+        private Timer next;
+        private Timer nextExpired;
+        private long deadline;
+        private TimingWheel wheel;
+        private boolean expiring;
+        
+        /**
+         * Called by the wheel when the timer expires.
+         */
+        protected abstract void expire();
+        
+        /**
+         * Returns true if the timer is scheduled to expire; false if
+         * otherwise.
+         * @return true if the timer is scheduled to expire; false if
+         *         otherwise
+         */
+        public boolean isArmed() {
+            return wheel != null || expiring;
+        }
+    }
+    
+    private Timer[] slots;
+    private int mask;
+    private long tickLength;
+    private long origin;
+    private long currentTick;
+    private int count;
+    private long nextDeadline;
+    private boolean nextDeadlineKnown;
+    
+    /**
+     * Creates a new timing wheel.
+     * @param slotCount the number of slots in the wheel; rounded up to a
+     *        power of two
+     * @param tickLength the length of a tick, in milliseconds
+     */
+    public TimingWheel(int slotCount, long tickLength) {
+        int size = Integer.highestOneBit(Math.max(slotCount, 2) - 1) << 1;
+        
+        slots = new Timer[size];
+        mask = size - 1;
+        this.tickLength = tickLength;
+        origin = now();
+        currentTick = 0L;
+        count = 0;
+        nextDeadlineKnown = false;
+    }
+    
+    /**
+     * Returns the current time, in milliseconds, on the clock that the
+     * wheel uses.
+     */
+    public static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+    
+    /**
+     * Returns the number of armed timers.
+     * @return number of armed timers
+     */
+    public int size() {
+        return count;
+    }
+    
+    /**
+     * Arms the given timer to expire after the given delay. If the timer is
+     * already armed, it is re-armed with the new delay.
+     * @param timer the timer to arm
+     * @param delay the delay, in milliseconds
+     */
+    public void schedule(Timer timer, long delay) {
+        if (timer.wheel != null)
+            unlink(timer);
+        timer.expiring = false;
+        
+        long elapsed = now() - origin + Math.max(delay, 0L);
+        long deadline = (elapsed + tickLength - 1) / tickLength;
+        if (deadline <= currentTick)
+            deadline = currentTick + 1;
+        
+        timer.deadline = deadline;
+        link(timer);
+        
+        if (nextDeadlineKnown && deadline < nextDeadline)
+            nextDeadline = deadline;
+    }
+    
+    /**
+     * Disarms the given timer. Does nothing if the timer is not armed.
+     * @return true if the timer was armed; false if otherwise
+     */
+    public boolean cancel(Timer timer) {
+        if (timer.expiring) {
+            timer.expiring = false;
+            return true;
+        }
+        if (timer.wheel != this)
+            return false;
+        
+        unlink(timer);
+        return true;
+    }
+    
+    /**
+     * Returns the number of milliseconds until the next timer will expire,
+     * zero if a timer is already due, or -1 if no timers are armed.
+     */
+    public long getDelay() {
+        if (count == 0)
+            return -1L;
+        
+        if (!nextDeadlineKnown) {
+            nextDeadline = findNextDeadline();
+            nextDeadlineKnown = true;
+        }
+        
+        long delay = (origin + nextDeadline * tickLength) - now();
+        return (delay > 0L) ? delay : 0L;
+    }
+    
+    /**
+     * Expires every timer whose deadline has passed.
+     */
+    public void advance() {
+        long target = (now() - origin) / tickLength;
+        if (target <= currentTick)
+            return;
+        
+        long ticks = Math.min(target - currentTick, (long) slots.length);
+        Timer expired = null;
+        
+        for (long tick = currentTick + 1; tick <= currentTick + ticks; tick++)
+        {
+            Timer timer = slots[(int) (tick & mask)];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.deadline <= target) {
+                    unlink(timer);
+                    timer.expiring = true;
+                    timer.nextExpired = expired;
+                    expired = timer;
+                }
+                timer = next;
+            }
+        }
+        
+        currentTick = target;
+        nextDeadlineKnown = false;
+        
+        while (expired != null) {
+            Timer timer = expired;
+            expired = timer.nextExpired;
+            timer.nextExpired = null;
+            
+            // A timer may have been cancelled or re-armed by a timer that
+            // expired before it.
+            if (timer.expiring) {
+                timer.expiring = false;
+                timer.expire();
+            }
+        }
+    }
+    
+    private long findNextDeadline() {
+        long earliest = Long.MAX_VALUE;
+        
+        for (long tick = currentTick + 1;
+            tick <= currentTick + slots.length; tick++)
+        {
+            for (Timer t = slots[(int) (tick & mask)]; t != null; t = t.next)
+            {
+                if (t.deadline <= tick)
+                    return t.deadline;
+                earliest = Math.min(earliest, t.deadline);
+            }
+        }
+        
+        return earliest;
+    }
+    
+    private void link(Timer timer) {
+        int slot = (int) (timer.deadline & mask);
+        
+        timer.previous = null;
+        timer.next = slots[slot];
+        if (timer.next != null)
+            timer.next.previous = timer;
+        slots[slot] = timer;
+        timer.wheel = this;
+        count++;
+    }
+    
+    private void unlink(Timer timer) {
+        if (timer.previous != null)
+            timer.previous.next = timer.next;
+        else
+            slots[(int) (timer.deadline & mask)] = timer.next;
+        if (timer.next != null)
+            timer.next.previous = timer.previous;
+        
+        timer.previous = null;
+        timer.next = null;
+        timer.wheel = null;
+        count--;
+    }
+}
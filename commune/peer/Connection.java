@@ -6,6 +6,7 @@ import commune.peer.MessageSource;
 import commune.peer.Receiver;
 import commune.protocol.*;
 import commune.source.AvailableResource;
+import commune.source.PieceDigest;
 import commune.source.Source;
 
 import java.io.*;
@@ -14,14 +15,20 @@ import java.nio.*;
 import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.Future;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * A connection to another Commune peer.
  */
 public class Connection {
-    public static final String USER_AGENT = "Commune Reference/0.5 (PEX)";
+    /**
+     * The number of chunks of a file that are read ahead of being sent,
+     * unless the connection is told otherwise.
+     */
+    public static final int DEFAULT_READ_AHEAD = 4;
+    
+    public static final String USER_AGENT = "Commune Reference/0.5 (PEX; " +
+        "FRAME=" + MessageBroker.MAX_FRAME_SIZE + "; PIECES; RANGE; " +
+        "PIECELIST)";
     
     private Source source;
     private PeerListener listener;
@@ -29,18 +36,22 @@ public class Connection {
     private long localID;
     private int listeningPort;
     private long expectedID;
+    private Reactor reactor;
     private SocketChannel channel;
     private MessageBroker broker;
+    private BufferPool pool;
     private Peer peer;
     private boolean helloReceived;
-    private long lastContact;
+    private volatile long lastContact;
     private Map<Integer, Request> requests;
     private Queue<Request> pendingRequests;
+    private int readAheadDepth;
     
     public Connection(Reactor reactor, SocketChannel channel, Source source,
         PeerListener listener, File storageFolder, long localID,
         int listeningPort, long expectedID) throws IOException
     {
+        this.reactor = reactor;
         this.channel = channel;
         this.source = source;
         this.listener = listener;
@@ -54,8 +65,11 @@ public class Connection {
         lastContact = 0;
         requests = new HashMap<Integer, Request>();
         pendingRequests = new LinkedList<Request>();
+        readAheadDepth = DEFAULT_READ_AHEAD;
         
-        broker = new MessageBroker(reactor, channel);
+        pool = BufferPool.getDefault();
+        broker = new MessageBroker(reactor, channel, pool);
+        broker.setCloseListener(new RequestCanceller());
         configureBroker();
         reactor.attach(channel, this);
     }
@@ -78,6 +92,41 @@ public class Connection {
         return request.getFileTask();
     }
     
+    /**
+     * Requests part of the file at the given path from the other peer, which
+     * must serve ranges. The data is written into the given file at the
+     * offsets it has in the requested file.
+     * @param offset the offset of the first byte wanted
+     * @param length the number of bytes wanted
+     * @param output the file to write the data into
+     * @param pieces the hashes of the file's pieces, against which each
+     *        piece in the range is checked, or <code>null</code>
+     * @param rangeListener the listener to tell of the request's progress
+     */
+    public void requestRange(String path, long offset, long length,
+        FileChannel output, PieceDigest pieces, RangeListener rangeListener)
+        throws IOException
+    {
+        Request request = createRequest(path, false);
+        request.setRange(offset, length, output, pieces, rangeListener);
+        sendRequest(request);
+    }
+    
+    /**
+     * Requests the hashes of the pieces of the file at the given path from
+     * the other peer, which must list pieces.
+     * @param length the length of the file, which determines how many
+     *        pieces it has
+     */
+    public Future<PieceDigest> requestPieces(String path, long length)
+        throws IOException
+    {
+        Request request = createRequest(path, false);
+        request.setPiecesOnly(length);
+        sendRequest(request);
+        return request.getPiecesTask();
+    }
+    
     /**
      * Requests information on the file at the given path from the other peer.
      */
@@ -87,17 +136,49 @@ public class Connection {
         return request.getResourceTask();
     }
     
-    private void sendRequest(Request request) throws IOException {
-        long now = System.currentTimeMillis();
-        if (now - lastContact >= 40000L) {
-            // Send a "hello" if it's been at least 40 seconds since we last
-            // received a message from this peer.
-            
-            pendingRequests.offer(request);
-            sendHello();
-        } else {
-            request.send();
-        }
+    /**
+     * Sends the given request from the reactor thread, which owns the queue
+     * of requests waiting for a hello. Requests are made from many threads
+     * (e.g., a swarm schedules ranges from the disk writer's threads).
+     */
+    private void sendRequest(final Request request) {
+        reactor.execute(new Runnable() {
+            public void run() {
+                long now = System.currentTimeMillis();
+                if (now - lastContact >= 40000L) {
+                    // Send a "hello" if it's been at least 40 seconds since
+                    // we last received a message from this peer.
+                    
+                    pendingRequests.offer(request);
+                    sendHello();
+                    return;
+                }
+                
+                try {
+                    request.send();
+                } catch (IOException e) {
+                    request.fail(e);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Returns the number of chunks of a file that are read ahead of being
+     * sent to the other peer.
+     * @return number of chunks read ahead
+     */
+    public int getReadAheadDepth() {
+        return readAheadDepth;
+    }
+    
+    /**
+     * Sets the number of chunks of a file that are read ahead of being sent
+     * to the other peer. If zero, chunks are sent straight from the file on
+     * the reactor thread. Applies to responses started afterwards.
+     */
+    public void setReadAheadDepth(int depth) {
+        readAheadDepth = Math.max(depth, 0);
     }
     
     /**
@@ -113,7 +194,9 @@ public class Connection {
     }
     
     /**
-     * Gets a pretty string describing the address of the other peer.
+     * Gets a pretty string describing the address of the other peer. The
+     * peer's host name is used if it is already known; this method never
+     * blocks for a name lookup.
      */
     public String describeAddress() {
         InetSocketAddress addr = (InetSocketAddress) getRemoteAddress();
@@ -121,7 +204,7 @@ public class Connection {
             listener.peerDisconnected(peer);
             return null;
         }
-        String host = addr.getAddress().getCanonicalHostName();
+        String host = Resolver.getDefault().getHostName(addr.getAddress());
         if (host.contains(":"))
             host = String.format("[%s]", host);
         
@@ -141,15 +224,11 @@ public class Connection {
     
     /**
      * Closes the connection to the other peer. Any IOExceptions encountered
-     * while closing the socket channel are silently ignored.
+     * while closing the socket channel are silently ignored. The connection
+     * is closed asynchronously by its reactor.
      */
     public void close() {
-        broker.cancel(true);
-        try {
-            channel.close();
-        } catch (IOException e) {
-            // ignore it
-        }
+        broker.close();
     }
     
     /**
@@ -201,7 +280,10 @@ public class Connection {
     }
     
     private Request getRequest(int id, boolean payload) {
-        Request request = requests.get(id);
+        Request request;
+        synchronized (requests) {
+            request = requests.get(id);
+        }
         if (request == null && !payload) {
             System.err.printf("error: got response from %s for " +
                 "unrecognized request ID %d%n", describeAddress(), id);
@@ -216,11 +298,12 @@ public class Connection {
     }
     
     private void configureBroker() {
-        broker.receive(HelloMessage.class, new HelloReceiver()).
-            receive(RequestMessage.class, new RequestReceiver()).
-            receive(ResponseMessage.class, new ResponseReceiver()).
-            receive(PayloadMessage.class, new PayloadReceiver()).
-            receive(PeerExchangeMessage.class, new PeerExchangeReceiver());
+        broker.receive(HelloMessage.CODE, new HelloReceiver()).
+            receiveBlocking(RequestMessage.CODE, new RequestReceiver()).
+            receiveBlocking(ResponseMessage.CODE, new ResponseReceiver()).
+            receiveBlocking(PieceListMessage.CODE, new PieceListReceiver()).
+            receive(PeerExchangeMessage.CODE, new PeerExchangeReceiver()).
+            receivePayloads(new PayloadStreamer());
     }
     
     private class HelloReceiver implements Receiver<HelloMessage> {
@@ -233,6 +316,22 @@ public class Connection {
             //     System.err.println();
             // }
             
+            Peer reported = null;
+            if (!helloReceived) {
+                InetAddress remote =
+                    ((InetSocketAddress) getRemoteAddress()).getAddress();
+                reported = Peer.fromAddress(remote,
+                    message.getListeningPort(), message.getPeerID(),
+                    message.getUserAgent());
+                if (!reported.reportsValidFrameSize()) {
+                    System.err.printf("error: %s reported a frame size " +
+                        "below %d bytes%n", describeAddress(),
+                        Peer.MIN_FRAME_SIZE);
+                    close();
+                    return;
+                }
+            }
+            
             Request pending;
             while ((pending = pendingRequests.poll()) != null)
                 pending.send();
@@ -246,11 +345,7 @@ public class Connection {
                 System.err.printf("got initial hello from %s%n",
                     describeAddress());
                 helloReceived = true;
-                
-                InetAddress remote =
-                    ((InetSocketAddress) getRemoteAddress()).getAddress();
-                peer = Peer.fromAddress(remote, message.getListeningPort(),
-                    message.getPeerID(), message.getUserAgent());
+                peer = reported;
                 
                 if (expectedID != 0 && expectedID != peer.getID()) {
                     listener.unexpectedPeerID(expectedID, peer);
@@ -277,15 +372,37 @@ public class Connection {
             
             AvailableResource resource = source.getResource(message.getPath());
             if (resource != null) {
-                if (resource.getSize() > Integer.MAX_VALUE) {
-                    // The reference implementation has no large file support.
-                    System.out.println("too large.");
+                if (message.isHypothetical()) {
+                    // Describe the resource from its metadata alone.
+                    System.out.println("OK.");
+                    byte[] rootDigest = (peer.hashesPieces())
+                        ? resource.getCachedRootDigest()
+                        : null;
                     broker.send(new ResponseMessage(message.getID(),
-                        (short) 430, "Resource Too Large"));
+                        (short) 200, "OK", resource.getSize(),
+                        resource.getContentType(),
+                        resource.getCachedDigest(), rootDigest));
                 } else {
-                    System.out.println("OK.");
-                    broker.send(new Response(message.getID(),
-                        resource, message.isHypothetical()));
+                    long size = resource.getSize();
+                    long offset = message.getOffset();
+                    long end = (message.getLength() == RequestMessage.TO_END)
+                        ? size
+                        : offset + message.getLength();
+                    
+                    if (offset < 0L || offset > size || end < offset ||
+                        end > size)
+                    {
+                        System.out.println("bad range.");
+                        broker.send(new ResponseMessage(message.getID(),
+                            (short) 416, "Range Not Satisfiable"));
+                    } else {
+                        System.out.println((offset > 0L)
+                            ? "OK, from byte " + offset + "."
+                            : "OK.");
+                        broker.send(new Response(message.getID(), resource,
+                            offset, end, peer.getMaximumFrameSize(),
+                            readAheadDepth));
+                    }
                 }
             } else {
                 System.out.println("not found!");
@@ -295,6 +412,14 @@ public class Connection {
         }
     }
     
+    /**
+     * Passes responses to the requests they answer. Starting a download
+     * creates its output file and progress record, and finishing a resumed
+     * download that was already complete reads the file back to check it,
+     * so this receiver runs on the worker pool. The payloads that follow
+     * the response are not read until it returns, so they always find the
+     * request ready for them.
+     */
     private class ResponseReceiver implements Receiver<ResponseMessage> {
         public void received(ResponseMessage message) throws IOException {
             gotContact();
@@ -305,13 +430,94 @@ public class Connection {
         }
     }
     
-    private class PayloadReceiver implements Receiver<PayloadMessage> {
-        public void received(PayloadMessage message) throws IOException {
+    /**
+     * Answers requests for piece hashes, and passes the hashes that arrive
+     * in answer to this peer's requests to those requests. Hashing a file's
+     * pieces can take a while, so this receiver runs on the worker pool.
+     */
+    private class PieceListReceiver implements Receiver<PieceListMessage> {
+        public void received(PieceListMessage message) throws IOException {
             gotContact();
             
-            Request request = getRequest(message.getRequestID(), true);
-            if (request != null)
-                request.payloadReceived(message);
+            if (message.isResponse()) {
+                Request request = getRequest(message.getID(), false);
+                if (request != null)
+                    request.piecesReceived(message);
+                return;
+            }
+            
+            System.out.printf("got piece list request for %s from %s: ",
+                message.getPath(), describeAddress());
+            
+            String path = message.getPath();
+            AvailableResource resource = source.getResource(path);
+            PieceDigest pieces = null;
+            if (resource != null) {
+                try {
+                    pieces = resource.getPieces();
+                } catch (IOException e) {
+                    System.err.printf("error: failed to hash file for " +
+                        "request %d: %s%n", message.getID(), e.getMessage());
+                }
+            }
+            
+            // Each message must carry at least one hash, or the hashes
+            // would never all be sent.
+            int capacity = PieceListMessage.getCapacity(path,
+                peer.getMaximumFrameSize());
+            if (pieces == null || capacity < 1) {
+                System.out.println("not available.");
+                broker.send(new PieceListMessage(message.getID(), path,
+                    PieceListMessage.UNAVAILABLE, 0, new byte[0][]));
+                return;
+            }
+            
+            // Split the hashes across as many messages as it takes.
+            System.out.println("OK.");
+            int total = pieces.getPieceCount();
+            int first = 0;
+            do {
+                byte[][] hashes = new byte[Math.min(total - first,
+                    capacity)][];
+                for (int i = 0; i < hashes.length; i++)
+                    hashes[i] = pieces.getPiece(first + i);
+                broker.send(new PieceListMessage(message.getID(), path,
+                    total, first, hashes));
+                first += hashes.length;
+            } while (first < total);
+        }
+    }
+    
+    /**
+     * Passes the bodies of incoming payloads to the requests they answer as
+     * the bodies arrive.
+     */
+    private class PayloadStreamer implements PayloadConsumer {
+        private Request current;
+        
+        public boolean payloadStarted(int requestID, long offset, int length)
+            throws IOException
+        {
+            gotContact();
+            
+            current = getRequest(requestID, true);
+            if (current != null && !current.payloadStarted(offset, length))
+                current = null;
+            return current != null;
+        }
+        
+        public void payloadData(ByteBuffer data) throws IOException {
+            current.payloadData(data);
+        }
+        
+        public int readPayload(ReadableByteChannel channel, int maximum)
+            throws IOException
+        {
+            return current.readPayload(channel, maximum);
+        }
+        
+        public void payloadFinished() throws IOException {
+            current = null;
         }
     }
     
@@ -330,20 +536,81 @@ public class Connection {
         return new File(storageFolder, parts[parts.length - 1]);
     }
     
+    /**
+     * Fails the outstanding requests when the connection is closed. A
+     * download that was under way can then be resumed from its progress
+     * record.
+     */
+    private class RequestCanceller implements CloseListener {
+        public void channelClosed(SelectableChannel channel,
+            Object attachment)
+        {
+            List<Request> outstanding;
+            synchronized (requests) {
+                outstanding = new ArrayList<Request>(requests.values());
+            }
+            
+            for (Request request : outstanding)
+                request.fail(new IOException("Connection closed."));
+        }
+    }
+    
     /**
      * Represents an outstanding request made of the other peer.
+     *
+     * If the other peer serves ranges, a download that was interrupted is
+     * resumed where it stopped: its progress is recorded beside the output
+     * file as it is written.
+     *
+     * A request for a range writes into a file provided by its range
+     * listener, which is told when the range has been written instead.
+     *
+     * A download of the whole file is checked against its digest as it is
+     * written (see {@link Verifier}), and only succeeds if it matches. If
+     * the other peer lists pieces, the hashes of the file's pieces are
+     * requested along with it, and each piece is checked as it arrives; a
+     * piece that does not match its hash is requested again on its own.
      */
     private class Request {
+        /** The most received data that may wait to be written to disk. */
+        private static final long WRITE_QUEUE_LIMIT = 4 * 1024 * 1024;
+        
+        /** How much data is written between updates to the progress. */
+        private static final long PROGRESS_INTERVAL = 8 * 1024 * 1024;
+        
+        /** The most data read from the socket into one buffer. */
+        private static final int READ_CHUNK = 128 * 1024;
+        
+        /** The most corrupt pieces fetched again before giving up. */
+        private static final int MAX_REPAIRS = 16;
+        
         private int id;
         private FutureTask<File> fileTask;
         private FutureTask<Resource> resourceTask;
+        private FutureTask<PieceDigest> piecesTask;
         private String path;
         private boolean hypothetical;
         private long fileLength;
-        private long bytesReceived;
+        private long end;
         private File outputFile;
         private RandomAccessFile outputAccess;
-        private ByteBuffer outputBuffer;
+        private DiskWriter.WriteQueue writeQueue;
+        private long writePosition;
+        private DownloadProgress progress;
+        private long resumeOffset;
+        private Verifier verifier;
+        private boolean verifying;
+        private boolean wantsPieces;
+        private int expectedPieces;
+        private List<PieceListMessage> earlyPieces;
+        private byte[][] receivedHashes;
+        private int hashesMissing;
+        private PieceDigest pieces;
+        private int repairs;
+        private long rangeLength;
+        private FileChannel rangeOutput;
+        private RangeListener rangeListener;
+        private volatile boolean finished;
         
         public Request(int id, String path, boolean hypothetical) {
             this.id = id;
@@ -357,11 +624,54 @@ public class Connection {
                 fileTask = null;
                 resourceTask = new FutureTask<Resource>();
             }
+            piecesTask = null;
             
-            bytesReceived = 0L;
             outputFile = null;
             outputAccess = null;
-            outputBuffer = null;
+            writeQueue = null;
+            writePosition = 0L;
+            progress = null;
+            resumeOffset = 0L;
+            verifier = null;
+            verifying = false;
+            wantsPieces = false;
+            expectedPieces = -1;
+            earlyPieces = new LinkedList<PieceListMessage>();
+            receivedHashes = null;
+            hashesMissing = 0;
+            pieces = null;
+            repairs = 0;
+            rangeLength = RequestMessage.TO_END;
+            rangeOutput = null;
+            rangeListener = null;
+            finished = false;
+        }
+        
+        /**
+         * Makes this a request for part of the file, to be written into the
+         * given file.
+         * @param pieces the hashes against which the pieces in the range are
+         *        checked, or <code>null</code>
+         */
+        public void setRange(long offset, long length, FileChannel output,
+            PieceDigest pieces, RangeListener listener)
+        {
+            resumeOffset = offset;
+            rangeLength = length;
+            rangeOutput = output;
+            this.pieces = pieces;
+            rangeListener = listener;
+        }
+        
+        /**
+         * Makes this a request for the hashes of the file's pieces alone.
+         * @param length the length of the file
+         */
+        public void setPiecesOnly(long length) {
+            fileTask = null;
+            piecesTask = new FutureTask<PieceDigest>();
+            wantsPieces = true;
+            expectedPieces = PieceDigest.getPieceCount(length);
         }
         
         /**
@@ -396,12 +706,41 @@ public class Connection {
             return resourceTask;
         }
         
+        /**
+         * Returns the request's piece-hash-yielding future task.
+         * @return request's piece-hash-yielding future task
+         */
+        public FutureTask<PieceDigest> getPiecesTask() {
+            return piecesTask;
+        }
+        
         public void send() throws IOException {
             // System.err.printf("requesting %s from %s%s%n", path,
             //     describeAddress(),
             //     (hypothetical ? " (hypothetically)" : ""));
             
-            broker.send(new RequestMessage(id, path, hypothetical));
+            if (piecesTask != null) {
+                broker.send(new PieceListMessage(id, path));
+                return;
+            }
+            
+            if (!hypothetical && rangeListener == null &&
+                peer.servesRanges())
+            {
+                progress = DownloadProgress.load(getOutputFile(path));
+                if (progress != null)
+                    resumeOffset = progress.getCompleted();
+            }
+            if (!hypothetical && rangeListener == null &&
+                peer.listsPieces())
+            {
+                // The other peer answers this before the request itself.
+                wantsPieces = true;
+                broker.send(new PieceListMessage(id, path));
+            }
+            
+            broker.send(new RequestMessage(id, path, hypothetical,
+                resumeOffset, rangeLength));
         }
         
         public void responseReceived(ResponseMessage message)
@@ -414,59 +753,488 @@ public class Connection {
                 if (hypothetical) {
                     yieldResource(message);
                     return;
+                } else if (rangeListener != null) {
+                    startRange(message);
+                    return;
                 }
                 
                 outputFile = getOutputFile(path);
                 fileLength = message.getFileLength();
+                end = fileLength;
+                PieceDigest checkedPieces = getCheckedPieces(message);
+                if (finished)
+                    return;
+                byte[] identity = (message.getRootDigest() != null)
+                    ? message.getRootDigest()
+                    : message.getDigest();
+                
+                if (resumeOffset > 0L) {
+                    if (!progress.matches(fileLength, identity)) {
+                        System.out.printf("partial copy of %s is out of " +
+                            "date; starting over%n", path);
+                        restart();
+                        return;
+                    }
+                    System.out.printf("resuming %s at byte %d%n", path,
+                        resumeOffset);
+                } else {
+                    progress = new DownloadProgress(outputFile, fileLength,
+                        identity);
+                    progress.save(0L);
+                }
+                
                 outputAccess = new RandomAccessFile(outputFile, "rw");
-                FileChannel channel = outputAccess.getChannel();
-                outputBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
-                    fileLength);
+                outputAccess.setLength(fileLength);
+                verifier = (checkedPieces != null)
+                    ? new Verifier(outputAccess.getChannel(), 0L, fileLength,
+                        checkedPieces, fileLength)
+                    : new Verifier(outputAccess.getChannel(), 0L, fileLength,
+                        message.getDigest(), message.getRootDigest());
+                verifier.alreadyWritten(0L, resumeOffset);
+                writeQueue = DiskWriter.getDefault().open(
+                    outputAccess.getChannel(), WRITE_QUEUE_LIMIT, pool,
+                    new WriteListener());
+                if (fileLength == resumeOffset)
+                    finish();
             } else {
                 System.err.printf("got %s (%d) for file %s from %s%n",
                     message.getStatusDescription(), message.getStatusCode(),
                     path, describeAddress());
-                IOException error = new IOException(String.format("%s (%d)",
-                    message.getStatusDescription(), message.getStatusCode()));
-                if (fileTask != null)
-                    fileTask.setError(error);
-                if (resourceTask != null)
-                    resourceTask.setError(error);
-                closeRequest(this);
+                fail(new IOException(String.format("%s (%d)",
+                    message.getStatusDescription(),
+                    message.getStatusCode())));
+            }
+        }
+        
+        /**
+         * Starts writing a requested range into its listener's file.
+         */
+        private void startRange(ResponseMessage message) {
+            fileLength = message.getFileLength();
+            end = resumeOffset + rangeLength;
+            
+            Resource resource = new Resource(path, fileLength,
+                message.getContentType(), message.getDigest(),
+                message.getRootDigest());
+            if (end > fileLength) {
+                fail(new IOException("Range extends past the end of the " +
+                    "file."));
+                return;
+            } else if (!rangeListener.rangeStarted(resource)) {
+                fail(new IOException("Range was rejected."));
+                return;
+            }
+            
+            verifier = (pieces != null)
+                ? new Verifier(rangeOutput, resumeOffset, end, pieces,
+                    fileLength)
+                : new Verifier(rangeOutput, resumeOffset, end, null, null);
+            writeQueue = DiskWriter.getDefault().open(rangeOutput,
+                WRITE_QUEUE_LIMIT, pool, new WriteListener());
+            if (end == resumeOffset)
+                finishRange();
+        }
+        
+        /**
+         * Abandons a resumed download whose resource has changed, and
+         * requests the whole resource again under a new ID. Payloads that
+         * arrive for this request are discarded.
+         */
+        private void restart() throws IOException {
+            finished = true;
+            closeRequest(this);
+            progress.delete();
+            
+            Request fresh = createRequest(path, false);
+            fresh.fileTask = fileTask;
+            fresh.send();
+        }
+        
+        /**
+         * Called when some of the hashes of the file's pieces arrive. Until
+         * the file's length is known, the hashes are only kept, so that the
+         * other peer cannot make this peer allocate room for more pieces
+         * than the file has.
+         */
+        public synchronized void piecesReceived(PieceListMessage message) {
+            if (!wantsPieces)
+                return;
+            
+            if (expectedPieces < 0)
+                earlyPieces.add(message);
+            else
+                addPieces(message);
+        }
+        
+        /**
+         * Records the hashes carried by the given message. The transfer is
+         * dropped if the other peer claims that the file has a different
+         * number of pieces than its length implies.
+         */
+        private void addPieces(PieceListMessage message) {
+            int total = message.getTotal();
+            if (total == PieceListMessage.UNAVAILABLE) {
+                wantsPieces = false;
+                receivedHashes = null;
+                if (piecesTask != null)
+                    fail(new IOException("Piece hashes are not available."));
+                return;
+            } else if (total != expectedPieces) {
+                wantsPieces = false;
+                receivedHashes = null;
+                fail(new IOException(String.format("Got hashes for %d " +
+                    "pieces of %s, which has %d.", total, path,
+                    expectedPieces)));
+                return;
+            }
+            
+            if (receivedHashes == null) {
+                receivedHashes = new byte[expectedPieces][];
+                hashesMissing = expectedPieces;
+            }
+            byte[][] hashes = message.getHashes();
+            for (int i = 0; i < hashes.length; i++) {
+                int index = message.getFirst() + i;
+                if (index < 0 || index >= expectedPieces)
+                    continue;
+                if (receivedHashes[index] == null)
+                    hashesMissing--;
+                receivedHashes[index] = hashes[i];
+            }
+            
+            if (hashesMissing == 0) {
+                pieces = new PieceDigest(receivedHashes);
+                wantsPieces = false;
+                receivedHashes = null;
+                if (piecesTask != null) {
+                    closeRequest(this);
+                    piecesTask.set(pieces);
+                }
+            }
+        }
+        
+        /**
+         * Returns the piece hashes that arrived before the response, if
+         * they agree with the root hash in the response. If the hashes
+         * claim a different number of pieces than the response's length
+         * implies, the request fails.
+         * @return the piece hashes, or <code>null</code> if there are none
+         *         that can be trusted
+         */
+        private synchronized PieceDigest getCheckedPieces(
+            ResponseMessage message)
+        {
+            if (wantsPieces) {
+                expectedPieces =
+                    PieceDigest.getPieceCount(message.getFileLength());
+                for (PieceListMessage early : earlyPieces) {
+                    if (!wantsPieces)
+                        break;
+                    addPieces(early);
+                }
+            }
+            earlyPieces.clear();
+            wantsPieces = false;
+            if (pieces == null || finished)
+                return null;
+            
+            if (message.getRootDigest() == null ||
+                !Arrays.equals(pieces.getRoot(), message.getRootDigest()))
+            {
+                System.err.printf("warning: piece hashes for %s do not " +
+                    "match its root hash; ignoring them%n", path);
+                return null;
             }
+            return pieces;
         }
         
         private void yieldResource(ResponseMessage message) {
             Resource resource = new Resource(path, message.getFileLength(),
-                message.getContentType(), message.getDigest());
+                message.getContentType(), message.getDigest(),
+                message.getRootDigest());
             resourceTask.set(resource);
             closeRequest(this);
         }
         
-        public void payloadReceived(PayloadMessage message)
+        /**
+         * Called when a payload for this request starts to arrive.
+         * @return true if the payload's body should be passed to
+         *         {@link payloadData}; false if it should be discarded
+         */
+        public boolean payloadStarted(long offset, int length)
             throws IOException
         {
-            if (message.getOffset() <= Integer.MAX_VALUE) {
-                int offset = (int) message.getOffset();
-                if (outputBuffer.position() != offset)
-                    outputBuffer.position(offset);
-            } else {
-                closeRequest(this);
-                outputAccess.close();
-                fileTask.setError(new IOException("File is too large."));
+            if (writeQueue == null || finished)
+                return false;
+            
+            if (offset < resumeOffset || offset + length > end) {
+                fail(new IOException("Payload at offset " + offset +
+                    " is outside the file."));
+                return false;
+            }
+            
+            writePosition = offset;
+            return true;
+        }
+        
+        /**
+         * Queues the next part of a payload's body to be written to the
+         * output file.
+         */
+        public void payloadData(ByteBuffer data) throws IOException {
+            ByteBuffer buffer = pool.acquire(data.remaining());
+            buffer.put(data);
+            buffer.flip();
+            queueWrite(buffer);
+        }
+        
+        /**
+         * Reads the next part of a payload's body from the socket into a
+         * pooled buffer, and queues it to be written to the output file.
+         */
+        public int readPayload(ReadableByteChannel channel, int maximum)
+            throws IOException
+        {
+            ByteBuffer buffer = pool.acquire(Math.min(maximum, READ_CHUNK));
+            int read = channel.read(buffer);
+            if (read <= 0) {
+                pool.release(buffer);
+                return read;
+            }
+            
+            buffer.flip();
+            queueWrite(buffer);
+            return read;
+        }
+        
+        private void queueWrite(ByteBuffer buffer) {
+            long position = writePosition;
+            writePosition += buffer.remaining();
+            
+            if (!writeQueue.write(buffer, position)) {
+                // The disk has fallen behind; stop reading until it catches
+                // up. The queue only reports this once per drained() call,
+                // so the pauses and resumes stay paired.
+                broker.pauseReading();
+            }
+        }
+        
+        private synchronized void finishRange() {
+            if (finished)
                 return;
+            finished = true;
+            
+            closeRequest(this);
+            rangeListener.rangeCompleted();
+        }
+        
+        private void finish() throws IOException {
+            synchronized (this) {
+                if (finished || verifying)
+                    return;
+                verifying = true;
             }
             
-            byte[] body = message.getBody();
-            outputBuffer.put(body);
-            bytesReceived += body.length;;
+            // Hash whatever has not been hashed yet; normally just the root.
+            BitSet corrupt;
+            boolean valid;
+            try {
+                corrupt = verifier.checkWritten();
+                valid = (corrupt == null) && verifier.verify();
+            } finally {
+                synchronized (this) {
+                    verifying = false;
+                }
+            }
+            if (corrupt != null) {
+                repair(corrupt);
+                return;
+            }
             
-            if (bytesReceived >= fileLength) {
-                System.out.printf("done receiving file %s%n", path);
+            synchronized (this) {
+                if (finished)
+                    return;
+                finished = true;
                 
                 closeRequest(this);
                 outputAccess.close();
+                // A copy that does not match is not worth resuming.
+                progress.delete();
+            }
+            
+            System.out.printf("done receiving file %s (%s)%n", path,
+                verifier.describeCost());
+            if (valid) {
                 fileTask.set(outputFile);
+            } else {
+                System.err.printf("error: %s does not match its digest%n",
+                    path);
+                fileTask.setError(new IOException("Downloaded file does " +
+                    "not match its digest."));
+            }
+        }
+        
+        private synchronized void fail(IOException error) {
+            if (finished)
+                return;
+            finished = true;
+            
+            closeRequest(this);
+            if (writeQueue != null)
+                writeQueue.cancel();
+            if (outputAccess != null) {
+                try {
+                    // Keep what was written, so it need not be fetched
+                    // again.
+                    outputAccess.getChannel().force(false);
+                    progress.save(verifier.getContiguous());
+                } catch (IOException e) {
+                    // the request has already failed
+                }
+                try {
+                    outputAccess.close();
+                } catch (IOException e) {
+                    // the request has already failed
+                }
+            }
+            if (rangeListener != null)
+                rangeListener.rangeFailed(error);
+            else if (fileTask != null)
+                fileTask.setError(error);
+            if (resourceTask != null)
+                resourceTask.setError(error);
+            if (piecesTask != null)
+                piecesTask.setError(error);
+        }
+        
+        /**
+         * Requests the given pieces of the file again, each on its own.
+         */
+        private void repair(BitSet corrupt) {
+            for (int piece = corrupt.nextSetBit(0); piece >= 0;
+                piece = corrupt.nextSetBit(piece + 1))
+            {
+                if (++repairs > MAX_REPAIRS) {
+                    fail(new IOException("Too many pieces of " + path +
+                        " were corrupt."));
+                    return;
+                }
+                
+                System.out.printf("piece %d of %s is corrupt; fetching it " +
+                    "again%n", piece, path);
+                long offset = (long) piece * PieceDigest.PIECE_SIZE;
+                long length = Math.min((long) PieceDigest.PIECE_SIZE,
+                    fileLength - offset);
+                try {
+                    requestRange(path, offset, length,
+                        outputAccess.getChannel(), pieces, new Repair(piece));
+                } catch (IOException e) {
+                    fail(e);
+                    return;
+                }
+            }
+        }
+        
+        /**
+         * Records how much of the file has been written, once the data
+         * itself is safely on disk.
+         */
+        private synchronized void saveProgress() {
+            if (finished)
+                return;
+            
+            try {
+                outputAccess.getChannel().force(false);
+                progress.save(verifier.getContiguous());
+            } catch (IOException e) {
+                System.err.printf("warning: could not record progress of " +
+                    "%s: %s%n", path, e.getMessage());
+            }
+        }
+        
+        /**
+         * Follows the progress of the writes to the output file, and passes
+         * the written data to the verifier. Its methods are called on the
+         * disk writer's threads.
+         */
+        private class WriteListener implements DiskWriter.Listener {
+            private long lastSaved = resumeOffset;
+            
+            public void written(ByteBuffer data, long position) {
+                BitSet corrupt;
+                try {
+                    corrupt = verifier.received(data, position);
+                } catch (IOException e) {
+                    fail(e);
+                    return;
+                }
+                
+                if (corrupt != null) {
+                    if (rangeListener != null) {
+                        fail(new IOException("Piece " +
+                            corrupt.nextSetBit(0) + " of " + path +
+                            " does not match its hash."));
+                        return;
+                    }
+                    repair(corrupt);
+                }
+                
+                long contiguous = verifier.getContiguous();
+                if (verifier.isComplete()) {
+                    if (rangeListener != null) {
+                        finishRange();
+                        return;
+                    }
+                    try {
+                        finish();
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                } else if (rangeListener == null &&
+                    contiguous - lastSaved >= PROGRESS_INTERVAL)
+                {
+                    saveProgress();
+                    lastSaved = contiguous;
+                }
+            }
+            
+            public void drained() {
+                broker.resumeReading();
+            }
+            
+            public void failed(IOException error) {
+                fail(error);
+            }
+        }
+        
+        /**
+         * Follows the request for a corrupt piece of the file.
+         */
+        private class Repair implements RangeListener {
+            private int piece;
+            
+            Repair(int piece) {
+                this.piece = piece;
+            }
+            
+            public boolean rangeStarted(Resource resource) {
+                return Arrays.equals(pieces.getRoot(),
+                    resource.getRootDigest());
+            }
+            
+            public void rangeCompleted() {
+                verifier.repaired(piece);
+                if (verifier.isComplete()) {
+                    try {
+                        finish();
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+            }
+            
+            public void rangeFailed(IOException error) {
+                fail(error);
             }
         }
         
@@ -478,6 +1246,14 @@ public class Connection {
     
     /**
      * Represents a response made to a request by the other peer.
+     *
+     * Nothing that touches the disk happens on the reactor thread. The
+     * file's digests are looked up (or, if not cached, computed) on the
+     * worker pool before the initial response is sent, so that hashing a
+     * large file does not hold up other transfers' reads. Up to
+     * <code>readAheadDepth</code> chunks of the file are read on the
+     * read-ahead stage ahead of being sent. With a depth of zero, chunks
+     * are instead sent straight from the file by the broker.
      */
     private class Response implements MessageSource {
         private static final int CHUNK_SIZE = (1024 * 512) -
@@ -485,51 +1261,227 @@ public class Connection {
         
         private int id;
         private AvailableResource resource;
+        private int chunkSize;
+        private int depth;
         private ResponseMessage initial;
-        private ByteBuffer contents;
+        private boolean initialSent;
+        private FileChannel file;
+        private long position;
+        private long end;
+        private LinkedList<Chunk> window;
+        private boolean waiting;
+        private boolean closed;
         
-        public Response(int id, AvailableResource resource,
-            boolean hypothetical) throws IOException
+        /**
+         * Creates a response that sends the bytes of the resource from
+         * <code>offset</code> up to <code>end</code>.
+         */
+        public Response(int id, AvailableResource resource, long offset,
+            long end, int frameSize, int depth) throws IOException
         {
             this.id = id;
             this.resource = resource;
+            this.chunkSize = Math.min(CHUNK_SIZE,
+                frameSize - Message.HEADER_LENGTH - PayloadMessage.OVERHEAD);
+            this.depth = depth;
+            
+            initial = null;
+            initialSent = false;
+            file = resource.open();
+            position = offset;
+            this.end = end;
+            window = new LinkedList<Chunk>();
+            waiting = false;
+            closed = false;
             
-            contents = resource.read();
+            WorkerPool.getDefault().execute(new Runnable() {
+                public void run() {
+                    prepareInitial();
+                }
+            });
+            fillWindow();
+        }
+        
+        private void prepareInitial() {
+            ResponseMessage message;
             
-            MessageDigest digest;
             try {
-                digest = MessageDigest.getInstance("SHA-1");
-                digest.update(contents);
-                contents.rewind();
-            } catch (NoSuchAlgorithmException e) {
-                digest = null;
+                // Peers that understand root hashes get one, which is
+                // computed in parallel; others need the whole-file hash.
+                byte[] digest;
+                byte[] rootDigest = null;
+                if (peer.hashesPieces()) {
+                    rootDigest = resource.getRootDigest();
+                    digest = resource.getCachedDigest();
+                } else {
+                    digest = resource.getDigest();
+                }
+                
+                message = new ResponseMessage(id, (short) 200, "OK",
+                    resource.getSize(), resource.getContentType(), digest,
+                    rootDigest);
+            } catch (IOException e) {
+                System.err.printf("error: failed to read file for request " +
+                    "%d: %s%n", id, e.getMessage());
+                message = new ResponseMessage(id, (short) 500,
+                    "Internal Error");
+                close();
+            }
+            
+            synchronized (this) {
+                initial = message;
+            }
+            wake();
+        }
+        
+        public synchronized boolean isReady() {
+            boolean ready;
+            
+            if (closed || initial != null) {
+                ready = true;
+            } else if (!initialSent) {
+                ready = false;
+            } else if (depth == 0 || window.isEmpty()) {
+                ready = true;
+            } else {
+                ready = window.getFirst().isDone();
             }
             
-            initial = new ResponseMessage(id, (short) 200, "OK",
-                resource.getSize(), resource.getContentType(),
-                (digest != null ? digest.digest() : null));
-            if (hypothetical)
-                contents = null;
+            waiting = !ready;
+            return ready;
         }
         
-        public Message next() {
+        public synchronized Message next() {
             if (initial != null) {
                 // Send the initial response message.
                 Message nextMessage = initial;
                 initial = null;
+                initialSent = true;
                 return nextMessage;
             }
             
-            if (contents == null || !contents.hasRemaining())
+            if (closed || file == null)
                 return null;
             
-            // Construct a new payload packet with the next chunk of the file.
-            int offset = contents.position();
-            int remaining = contents.limit() - offset;
-            byte[] dest = new byte[Math.min(remaining, CHUNK_SIZE)];
-            contents.get(dest);
+            if (depth == 0) {
+                if (position >= end)
+                    return null;
+                
+                // Send the next chunk straight from the file.
+                long offset = position;
+                int length = (int) Math.min(end - offset, (long) chunkSize);
+                position += length;
+                return new PayloadMessage(id, offset, length, file);
+            }
             
-            return new PayloadMessage(id, offset, dest);
+            Chunk chunk = window.poll();
+            if (chunk == null)
+                return null;
+            if (chunk.error != null) {
+                close();
+                return null;
+            }
+            
+            fillWindow();
+            return new PayloadMessage(id, chunk.offset, chunk.buffer);
+        }
+        
+        /**
+         * Starts reading chunks until the read-ahead window is full.
+         */
+        private synchronized void fillWindow() {
+            if (file == null || closed)
+                return;
+            
+            while (window.size() < depth && position < end) {
+                long offset = position;
+                int length = (int) Math.min(end - offset, (long) chunkSize);
+                position += length;
+                
+                Chunk chunk = new Chunk(offset);
+                window.add(chunk);
+                ReadAhead.getDefault().read(file, offset, length, pool,
+                    chunk);
+            }
+        }
+        
+        /**
+         * Tells the broker that the response is ready, if it is waiting.
+         */
+        private void wake() {
+            synchronized (this) {
+                if (!waiting)
+                    return;
+                waiting = false;
+            }
+            broker.sourceReady();
+        }
+        
+        public synchronized void close() {
+            if (closed)
+                return;
+            closed = true;
+            
+            for (Chunk chunk : window) {
+                if (chunk.buffer != null)
+                    pool.release(chunk.buffer);
+            }
+            window.clear();
+            
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // nothing useful can be done
+                }
+            }
+        }
+        
+        /**
+         * A chunk of the file being read ahead.
+         */
+        private class Chunk implements ReadAhead.Callback {
+            long offset;
+            ByteBuffer buffer;
+            IOException error;
+            
+            public Chunk(long offset) {
+                this.offset = offset;
+                buffer = null;
+                error = null;
+            }
+            
+            public boolean isDone() {
+                return buffer != null || error != null;
+            }
+            
+            public void read(ByteBuffer buffer) {
+                synchronized (Response.this) {
+                    if (closed) {
+                        pool.release(buffer);
+                        return;
+                    }
+                    this.buffer = buffer;
+                }
+                wake();
+            }
+            
+            public void failed(IOException error) {
+                synchronized (Response.this) {
+                    this.error = error;
+                }
+                wake();
+                
+                System.err.printf("error: failed to read file for request " +
+                    "%d: %s%n", id, error.getMessage());
+                // The other peer has already been told that the file is
+                // coming, and has no other way to learn that it is not.
+                // Closing the connection fails its request, which it can
+                // then resume. This runs on the read-ahead stage, so the
+                // close is carried out by the reactor once it is between
+                // events.
+                broker.close();
+            }
         }
     }
 }
@@ -0,0 +1,244 @@
+package commune.peer;
+
+import commune.net.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+
+/**
+ * A stage that writes received data to disk on its own threads.
+ *
+ * Writing to a file can stall for a long time when the disk is slow, and a
+ * reactor thread that stalls holds up every connection it serves. Received
+ * data is therefore handed to a disk writer in pooled buffers, and written
+ * to its file by one of the writer's threads.
+ *
+ * Each file being written has its own queue. A queue holds a bounded
+ * amount of data: once it is full, the connection feeding it should stop
+ * reading from its socket until the queue has drained.
+ */
+public class DiskWriter {
+    private static final DiskWriter DEFAULT_WRITER = new DiskWriter(2);
+    
+    /**
+     * An interface for objects that want to know how writes to a file are
+     * progressing. Its methods are called on the writer's threads.
+     */
+    public interface Listener {
+        /**
+         * Called after data has been written to the file, before its
+         * buffer is released.
+         * @param data the data that was written; it must not be used once
+         *        this method returns
+         * @param position the offset in the file at which it was written
+         */
+        public void written(ByteBuffer data, long position);
+        
+        /**
+         * Called when a queue that was full has drained enough to accept
+         * more data.
+         */
+        public void drained();
+        
+        /**
+         * Called when a write fails. No further writes are made to the
+         * file.
+         */
+        public void failed(IOException error);
+    }
+    
+    private ExecutorService writeService;
+    
+    /**
+     * Creates a new disk writer.
+     * @param threads the number of threads on which to write
+     */
+    public DiskWriter(int threads) {
+        writeService = Executors.newFixedThreadPool(threads,
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DiskWriter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+    
+    /**
+     * Returns the disk writer shared by the whole application.
+     * @return disk writer shared by the whole application
+     */
+    public static DiskWriter getDefault() {
+        return DEFAULT_WRITER;
+    }
+    
+    /**
+     * Creates a queue of writes to the given file.
+     * @param file the file to write to
+     * @param limit the number of bytes the queue holds before it is full
+     * @param pool the pool to which written buffers are released
+     * @param listener the listener to tell of the queue's progress
+     */
+    public WriteQueue open(FileChannel file, long limit, BufferPool pool,
+        Listener listener)
+    {
+        return new WriteQueue(file, limit, pool, listener);
+    }
+    
+    /**
+     * A queue of writes to one file. Writes are made in the order they were
+     * queued, by one thread at a time.
+     */
+    public class WriteQueue implements Runnable {
+        private FileChannel file;
+        private long limit;
+        private BufferPool pool;
+        private Listener listener;
+        private LinkedList<Write> writes;
+        private long queuedBytes;
+        private boolean full;
+        private boolean running;
+        private boolean failed;
+        
+        WriteQueue(FileChannel file, long limit, BufferPool pool,
+            Listener listener)
+        {
+            this.file = file;
+            this.limit = limit;
+            this.pool = pool;
+            this.listener = listener;
+            writes = new LinkedList<Write>();
+            queuedBytes = 0L;
+            full = false;
+            running = false;
+            failed = false;
+        }
+        
+        /**
+         * Queues the contents of the given buffer to be written to the file
+         * at the given position. The buffer must have been acquired from the
+         * queue's pool; it is released once it has been written.
+         * @return false if this write filled the queue, in which case the
+         *         listener's {@link Listener#drained} method is called once
+         *         it has room again; true if otherwise (including if the
+         *         queue was already full), so that each false result is
+         *         paired with exactly one call to <code>drained</code>
+         */
+        public boolean write(ByteBuffer buffer, long position) {
+            synchronized (writes) {
+                if (failed) {
+                    pool.release(buffer);
+                    return true;
+                }
+                
+                writes.add(new Write(buffer, position));
+                queuedBytes += buffer.remaining();
+                if (!running) {
+                    running = true;
+                    writeService.execute(this);
+                }
+                
+                if (!full && queuedBytes >= limit) {
+                    full = true;
+                    return false;
+                }
+                return true;
+            }
+        }
+        
+        public void run() {
+            while (true) {
+                Write write;
+                synchronized (writes) {
+                    write = writes.poll();
+                    if (write == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                
+                int count = write.buffer.remaining();
+                IOException error = null;
+                try {
+                    long position = write.position;
+                    while (write.buffer.hasRemaining())
+                        position += file.write(write.buffer, position);
+                } catch (IOException e) {
+                    error = e;
+                }
+                
+                if (error == null) {
+                    // Let the listener see the data while it is still in
+                    // memory.
+                    write.buffer.flip();
+                    listener.written(write.buffer, write.position);
+                }
+                pool.release(write.buffer);
+                
+                boolean drained = false;
+                synchronized (writes) {
+                    queuedBytes -= count;
+                    if (full && queuedBytes <= limit / 2) {
+                        full = false;
+                        drained = true;
+                    }
+                    if (error != null) {
+                        failed = true;
+                        running = false;
+                        drained |= full;
+                        full = false;
+                        discard();
+                    }
+                }
+                
+                if (error != null) {
+                    listener.failed(error);
+                    if (drained)
+                        listener.drained();
+                    return;
+                }
+                if (drained)
+                    listener.drained();
+            }
+        }
+        
+        /**
+         * Discards all queued writes, releasing their buffers. Further
+         * writes are discarded as they are queued. If the queue was full,
+         * the listener is told that it has drained.
+         */
+        public void cancel() {
+            boolean wasFull;
+            synchronized (writes) {
+                failed = true;
+                wasFull = full;
+                full = false;
+                discard();
+            }
+            
+            if (wasFull)
+                listener.drained();
+        }
+        
+        private void discard() {
+            Write write;
+            while ((write = writes.poll()) != null) {
+                queuedBytes -= write.buffer.remaining();
+                pool.release(write.buffer);
+            }
+        }
+    }
+    
+    private static class Write {
+        final ByteBuffer buffer;
+        final long position;
+        
+        Write(ByteBuffer buffer, long position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package commune.peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A record of how much of a download has been written to disk, kept beside
+ * the downloaded file so that an interrupted download can be resumed.
+ *
+ * A download from a single peer is written in order, so its progress is
+ * the length of the prefix of the file that has been written. A download
+ * from a swarm also records which of the file's pieces beyond that prefix
+ * are complete. The record also holds the resource's length and digest, so
+ * that a partial file is only resumed if the resource has not changed
+ * since.
+ */
+class DownloadProgress {
+    private static final int MAGIC = 0x43505247; // "CPRG"
+    private static final String SUFFIX = ".progress";
+    
+    private File recordFile;
+    private long length;
+    private byte[] identity;
+    private long completed;
+    private BitSet pieces;
+    
+    /**
+     * Creates a new progress record for the given file. Nothing is written
+     * until {@link save} is called.
+     * @param file the file being downloaded
+     * @param length the length of the resource being downloaded
+     * @param identity the resource's digest, or <code>null</code> if it has
+     *        none
+     */
+    public DownloadProgress(File file, long length, byte[] identity) {
+        this.recordFile = getRecordFile(file);
+        this.length = length;
+        this.identity = (identity != null) ? identity : new byte[0];
+        completed = 0L;
+        pieces = null;
+    }
+    
+    /**
+     * Loads the progress record of the given file.
+     * @return the file's progress record, or <code>null</code> if it has
+     *         none (or it could not be read)
+     */
+    public static DownloadProgress load(File file) {
+        File recordFile = getRecordFile(file);
+        if (!recordFile.isFile() || !file.isFile())
+            return null;
+        
+        try {
+            ByteBuffer record = ByteBuffer.wrap(
+                Files.readAllBytes(recordFile.toPath()));
+            if (record.getInt() != MAGIC)
+                return null;
+            long length = record.getLong();
+            long completed = record.getLong();
+            byte[] identity = new byte[record.getShort() & 0xFFFF];
+            record.get(identity);
+            BitSet pieces = null;
+            if (record.remaining() >= 4) {
+                byte[] bitmap = new byte[record.getInt()];
+                record.get(bitmap);
+                pieces = BitSet.valueOf(bitmap);
+            }
+            
+            if (completed < 0L || completed > length ||
+                completed > file.length())
+            {
+                return null;
+            }
+            
+            DownloadProgress progress = new DownloadProgress(file, length,
+                identity);
+            progress.completed = completed;
+            progress.pieces = pieces;
+            return progress;
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // The record is truncated or otherwise damaged.
+            return null;
+        }
+    }
+    
+    private static File getRecordFile(File file) {
+        return new File(file.getPath() + SUFFIX);
+    }
+    
+    /**
+     * Returns the number of bytes at the start of the file that have been
+     * written.
+     * @return number of bytes that have been written
+     */
+    public long getCompleted() {
+        return completed;
+    }
+    
+    /**
+     * Returns the pieces that are known to be complete, beyond those in the
+     * completed prefix.
+     * @return the complete pieces, or <code>null</code> if the record does
+     *         not list any
+     */
+    public BitSet getPieces() {
+        return (pieces != null) ? (BitSet) pieces.clone() : null;
+    }
+    
+    /**
+     * Returns true if the record describes a resource with the given length
+     * and digest; false if otherwise.
+     */
+    public boolean matches(long length, byte[] identity) {
+        if (identity == null)
+            identity = new byte[0];
+        return this.length == length && identity.length > 0 &&
+            Arrays.equals(this.identity, identity);
+    }
+    
+    /**
+     * Records that the given number of bytes at the start of the file have
+     * been written. The record is replaced atomically, so a crash leaves
+     * either the old record or the new one.
+     */
+    public void save(long completed) throws IOException {
+        save(completed, null);
+    }
+    
+    /**
+     * Records that the given number of bytes at the start of the file, and
+     * the given pieces, have been written.
+     * @param pieces the complete pieces, or <code>null</code>
+     */
+    public synchronized void save(long completed, BitSet pieces)
+        throws IOException
+    {
+        this.completed = completed;
+        this.pieces = (pieces != null) ? (BitSet) pieces.clone() : null;
+        byte[] bitmap = (pieces != null) ? pieces.toByteArray() : null;
+        
+        ByteBuffer record = ByteBuffer.allocate(4 + 8 + 8 + 2 +
+            identity.length + ((bitmap != null) ? 4 + bitmap.length : 0));
+        record.putInt(MAGIC);
+        record.putLong(length);
+        record.putLong(completed);
+        record.putShort((short) identity.length);
+        record.put(identity);
+        if (bitmap != null) {
+            record.putInt(bitmap.length);
+            record.put(bitmap);
+        }
+        record.flip();
+        
+        File temp = new File(recordFile.getPath() + ".tmp");
+        FileChannel channel = FileChannel.open(temp.toPath(),
+            StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (record.hasRemaining())
+                channel.write(record);
+        } finally {
+            channel.close();
+        }
+        Files.move(temp.toPath(), recordFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Deletes the record once the download is complete.
+     */
+    public void delete() {
+        recordFile.delete();
+    }
+}
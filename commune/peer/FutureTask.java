@@ -27,10 +27,8 @@ class FutureTask<V> implements Future<V> {
     public V get() throws ExecutionException, InterruptedException {
         lock.lock();
         try {
-            if (set)
-                return value;
-            
-            ready.await();
+            while (!set)
+                ready.await();
             
             if (error != null)
                 throw new ExecutionException(error);
@@ -46,11 +44,11 @@ class FutureTask<V> implements Future<V> {
     {
         lock.lock();
         try {
-            if (set)
-                return value;
-            
-            if (!ready.await(timeout, unit)) {
-                throw new TimeoutException();
+            long remaining = unit.toNanos(timeout);
+            while (!set) {
+                if (remaining <= 0L)
+                    throw new TimeoutException();
+                remaining = ready.awaitNanos(remaining);
             }
             
             if (error != null)
@@ -1,14 +1,16 @@
 package commune.peer;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.util.*;
 import commune.net.*;
 import commune.protocol.Message;
+import commune.protocol.MessageTypes;
 import commune.protocol.InvalidMessageException;
+import commune.protocol.PayloadMessage;
 
 /**
  * A higher-level interface for receiving and sending Commune messages over
@@ -23,42 +25,161 @@ import commune.protocol.InvalidMessageException;
  * messages.
  */
 public class MessageBroker {
+    /**
+     * The largest frame that a broker accepts unless it is told otherwise.
+     */
+    public static final int MAX_FRAME_SIZE = 1024 * 1024;
+    
+    private static final int PAYLOAD_HEADER_LENGTH =
+        Message.HEADER_LENGTH + PayloadMessage.OVERHEAD;
+    
     private Reactor reactor;
     private SocketChannel channel;
     private Queue<Message> outgoing;
     private Queue<MessageSource> sources;
-    private Map<Short, Receiver<Message>> receivers;
+    private Receiver<Message>[] receivers;
+    private boolean[] blocking;
+    private WorkerPool workers;
+    private PayloadConsumer payloadConsumer;
+    private int maxFrameSize;
+    private int readPauses;
+    private boolean closed;
+    private CloseListener closeListener;
+    private BufferPool pool;
     private MessageReader reader;
     private MessageWriter writer;
     
     public MessageBroker(Reactor reactor, SocketChannel channel) {
+        this(reactor, channel, BufferPool.getDefault());
+    }
+    
+    /**
+     * Creates a new message broker that takes its buffers from the given
+     * pool.
+     */
+    public MessageBroker(Reactor reactor, SocketChannel channel,
+        BufferPool pool)
+    {
         this.reactor = reactor;
         this.channel = channel;
+        this.pool = pool;
         
         outgoing = new LinkedList<Message>();
         sources = new LinkedList<MessageSource>();
-        receivers = new HashMap<Short, Receiver<Message>>();
+        receivers = newReceiverTable();
+        blocking = new boolean[MessageTypes.TABLE_SIZE];
+        workers = WorkerPool.getDefault();
+        payloadConsumer = null;
+        maxFrameSize = MAX_FRAME_SIZE;
+        readPauses = 0;
+        closed = false;
+        closeListener = null;
         reader = new MessageReader();
         writer = new MessageWriter();
+        reactor.addCloseListener(channel, new SourceCloser());
+    }
+    
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Receiver<Message>[] newReceiverTable() {
+        return (Receiver<Message>[]) new Receiver[MessageTypes.TABLE_SIZE];
     }
     
-    public <T extends Message> MessageBroker receive(Class<T> type,
+    /**
+     * Instructs the broker to pass messages with the given type code to the
+     * given receiver.
+     * @param code the type code (e.g., <code>HelloMessage.CODE</code>)
+     * @param receiver the receiver for messages of that type
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Message> MessageBroker receive(short code,
         Receiver<T> receiver)
     {
-        short code;
-        
-        try {
-            // Use reflection to get the message code.
-            Field field = type.getDeclaredField("CODE");
-            code = (Short) field.get(null);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        if (!MessageTypes.isKnown(code)) {
+            throw new IllegalArgumentException("Unknown message type code " +
+                code + ".");
         }
         
-        receivers.put(code, (Receiver<Message>) receiver);
+        receivers[code] = (Receiver<Message>) receiver;
+        blocking[code] = false;
+        return this;
+    }
+    
+    /**
+     * Instructs the broker to pass messages with the given type code to the
+     * given receiver, which may block (e.g., on disk access). The receiver
+     * is run on the worker pool, and the broker reads no further messages
+     * from the channel until it returns, so messages are still handled in
+     * the order in which they arrived.
+     * @param code the type code (e.g., <code>RequestMessage.CODE</code>)
+     * @param receiver the receiver for messages of that type
+     */
+    public <T extends Message> MessageBroker receiveBlocking(short code,
+        Receiver<T> receiver)
+    {
+        receive(code, receiver);
+        blocking[code] = true;
+        return this;
+    }
+    
+    /**
+     * Instructs the broker to stream the bodies of payload messages to the
+     * given consumer as they arrive. Payload messages are then never parsed
+     * as whole messages, and any payload receiver is ignored.
+     */
+    public MessageBroker receivePayloads(PayloadConsumer consumer) {
+        payloadConsumer = consumer;
         return this;
     }
     
+    /**
+     * Returns the size, in bytes, of the largest frame the broker accepts.
+     * @return size of the largest frame the broker accepts
+     */
+    public int getMaximumFrameSize() {
+        return maxFrameSize;
+    }
+    
+    /**
+     * Sets the size of the largest frame the broker accepts. If the other
+     * peer sends a larger frame, the connection is closed.
+     */
+    public void setMaximumFrameSize(int size) {
+        if (size < PAYLOAD_HEADER_LENGTH) {
+            throw new IllegalArgumentException("Frame size " + size +
+                " is too small.");
+        }
+        maxFrameSize = size;
+    }
+    
+    /**
+     * Stops reading messages from the channel, e.g. because the data already
+     * received cannot be processed quickly enough. Reading resumes once
+     * {@link resumeReading} has been called as many times as this method.
+     * The change takes effect asynchronously unless this method is called
+     * on the reactor thread.
+     */
+    public void pauseReading() {
+        reactor.execute(new Runnable() {
+            public void run() {
+                if (readPauses++ == 0 && channel.isOpen())
+                    reactor.remove(channel, Operation.READ);
+            }
+        });
+    }
+    
+    /**
+     * Undoes one call to {@link pauseReading}. This method may be called
+     * from any thread.
+     */
+    public void resumeReading() {
+        reactor.execute(new Runnable() {
+            public void run() {
+                if (--readPauses == 0 && channel.isOpen())
+                    reactor.listen(channel, Operation.READ, reader);
+            }
+        });
+    }
+    
     public MessageBroker send(Message message) {
         synchronized (outgoing) {
             outgoing.offer(message);
@@ -69,99 +190,521 @@ public class MessageBroker {
     
     public MessageBroker send(MessageSource source) {
         synchronized (outgoing) {
+            if (closed) {
+                // The broker's sources have already been closed.
+                source.close();
+                return this;
+            }
             sources.offer(source);
             reactor.listen(channel, Operation.WRITE, writer);
         }
         return this;
     }
     
+    /**
+     * Tells the broker that a message source whose {@link
+     * MessageSource#isReady isReady} method returned false now has a message
+     * ready. This method may be called from any thread.
+     */
+    public void sourceReady() {
+        reactor.execute(new Runnable() {
+            public void run() {
+                if (channel.isOpen())
+                    reactor.listen(channel, Operation.WRITE, writer);
+            }
+        });
+    }
+    
+    /**
+     * Sets a listener to be told when the broker's channel is closed, after
+     * the broker has released its own resources.
+     */
+    public void setCloseListener(CloseListener listener) {
+        closeListener = listener;
+    }
+    
     public void cancel(boolean closing) {
         reactor.cancel(channel, closing);
     }
     
+    /**
+     * Closes the broker's channel on its reactor thread, after notifying the
+     * reactor's close listeners.
+     */
+    public void close() {
+        reactor.close(channel);
+    }
+    
+    /**
+     * Reads messages from the channel. Each read fills a per-connection
+     * receive buffer with as much data as is available, and every complete
+     * message in the buffer is parsed in place. A partial message is carried
+     * over to the next read. Only messages too large for the receive buffer
+     * are read into separate storage.
+     *
+     * If the broker has a payload consumer, payload bodies are instead
+     * streamed to it as they arrive, so that they are never held whole.
+     * Once the receive buffer has been drained, the rest of a payload's
+     * body is read by the consumer directly into its destination.
+     */
     private class MessageReader implements Listener {
-        private ByteBuffer headerBuffer;
-        private ByteBuffer overallBuffer;
+        private static final int BUFFER_SIZE = 64 * 1024;
+        
+        /** The most reads performed in response to one event. */
+        private static final int READS_PER_EVENT = 16;
+        
+        private ByteBuffer receiveBuffer;
+        private ByteBuffer largeBuffer;
+        private boolean reading;
+        private boolean closed;
+        private boolean blocked;
+        private int payloadRemaining;
+        private boolean payloadAccepted;
         
         public MessageReader() {
-            headerBuffer = ByteBuffer.allocate(Message.HEADER_LENGTH);
-            overallBuffer = null;
+            receiveBuffer = pool.acquire(BUFFER_SIZE);
+            largeBuffer = null;
+            payloadRemaining = 0;
+            payloadAccepted = false;
+            reading = false;
+            closed = false;
+            blocked = false;
             reactor.listen(channel, Operation.READ, this);
         }
         
         public void ready(SelectableChannel channel) throws IOException {
-            if (overallBuffer == null) {
-                ((ByteChannel) channel).read(headerBuffer);
-                if (headerBuffer.position() == headerBuffer.capacity())
-                    processHeader();
-            } else {
-                ((ByteChannel) channel).read(overallBuffer);
-                if (overallBuffer.position() == overallBuffer.capacity()) {
-                    overallBuffer.flip();
-                    processMessage();
-                    overallBuffer = null;
+            reading = true;
+            try {
+                read((ReadableByteChannel) channel);
+            } finally {
+                reading = false;
+                if (closed)
+                    releaseBuffers();
+            }
+        }
+        
+        private void read(ReadableByteChannel in) throws IOException {
+            for (int i = 0; i < READS_PER_EVENT; i++) {
+                if (closed || blocked || readPauses > 0)
+                    return;
+                
+                if (largeBuffer != null) {
+                    if (in.read(largeBuffer) < 0)
+                        throw new EOFException("Connection closed.");
+                    if (largeBuffer.hasRemaining())
+                        return;
+                    
+                    largeBuffer.flip();
+                    processMessage(largeBuffer);
+                    pool.release(largeBuffer);
+                    largeBuffer = null;
+                    if (closed)
+                        return;
+                }
+                
+                if (payloadRemaining > 0 && payloadAccepted &&
+                    receiveBuffer.position() == 0)
+                {
+                    // The receive buffer is empty, so the rest of the
+                    // payload can go straight to the consumer.
+                    if (readPayload(in) == 0)
+                        return;
+                    continue;
+                }
+                
+                int space = receiveBuffer.remaining();
+                int read = in.read(receiveBuffer);
+                if (read < 0)
+                    throw new EOFException("Connection closed.");
+                
+                receiveBuffer.flip();
+                processMessages();
+                receiveBuffer.compact();
+                
+                if (read < space && largeBuffer == null)
+                    return; // everything available has been read
+            }
+        }
+        
+        /**
+         * Returns the reader's buffers to the pool once the channel has been
+         * closed. If the channel was closed by a receiver while the reader
+         * was parsing, the buffers are released when parsing stops.
+         */
+        public void close() {
+            closed = true;
+            if (!reading)
+                releaseBuffers();
+        }
+        
+        private void releaseBuffers() {
+            if (receiveBuffer != null) {
+                pool.release(receiveBuffer);
+                receiveBuffer = null;
+            }
+            if (largeBuffer != null) {
+                pool.release(largeBuffer);
+                largeBuffer = null;
+            }
+        }
+        
+        /**
+         * Parses every complete message in the receive buffer. If the buffer
+         * holds the start of a message too large to fit in it, the start is
+         * moved to a large buffer.
+         */
+        private void processMessages() throws IOException {
+            while (!closed && !blocked) {
+                if (payloadRemaining > 0) {
+                    if (!receiveBuffer.hasRemaining())
+                        return;
+                    streamPayload();
+                    continue;
+                }
+                
+                if (receiveBuffer.remaining() < Message.HEADER_LENGTH)
+                    return;
+                
+                int start = receiveBuffer.position();
+                int length = receiveBuffer.getInt(start);
+                if (length < Message.HEADER_LENGTH || length > maxFrameSize) {
+                    throw new IOException("Invalid message length " +
+                        length + ".");
+                }
+                
+                short code = receiveBuffer.getShort(start + 4);
+                if (code == PayloadMessage.CODE && payloadConsumer != null) {
+                    if (length < PAYLOAD_HEADER_LENGTH) {
+                        throw new IOException("Invalid payload length " +
+                            length + ".");
+                    }
+                    if (receiveBuffer.remaining() < PAYLOAD_HEADER_LENGTH)
+                        return; // wait for the rest of the payload header
+                    startPayload(start, length);
+                    continue;
+                }
+                
+                if (length <= receiveBuffer.remaining()) {
+                    int limit = receiveBuffer.limit();
+                    receiveBuffer.limit(start + length);
+                    try {
+                        processMessage(receiveBuffer);
+                    } finally {
+                        receiveBuffer.limit(limit);
+                        receiveBuffer.position(start + length);
+                    }
+                } else if (length > receiveBuffer.capacity()) {
+                    largeBuffer = pool.acquire(length);
+                    largeBuffer.put(receiveBuffer);
+                    return;
+                } else {
+                    return; // wait for the rest of the message
                 }
             }
         }
         
-        private void processHeader() {
-            headerBuffer.flip();
+        private void startPayload(int start, int length) {
+            int fields = start + Message.HEADER_LENGTH;
+            int requestID = receiveBuffer.getInt(fields);
+            long offset = receiveBuffer.getLong(fields + 4);
+            receiveBuffer.position(start + PAYLOAD_HEADER_LENGTH);
+            payloadRemaining = length - PAYLOAD_HEADER_LENGTH;
             
-            int length = headerBuffer.getInt();
-            short code = headerBuffer.getShort();
-            headerBuffer.rewind();
+            try {
+                payloadAccepted = payloadConsumer.payloadStarted(requestID,
+                    offset, payloadRemaining);
+            } catch (IOException e) {
+                e.printStackTrace();
+                payloadAccepted = false;
+            }
             
-            overallBuffer = ByteBuffer.allocate(length);
-            overallBuffer.put(headerBuffer);
-            headerBuffer.clear();
+            if (payloadRemaining == 0)
+                finishPayload();
         }
         
-        private void processMessage() {
-            try {
-                Message message = Message.parseMessage(overallBuffer);
-                overallBuffer = null;
+        /**
+         * Passes as much of the current payload's body as the receive buffer
+         * holds to the payload consumer.
+         */
+        private void streamPayload() {
+            int count = Math.min(receiveBuffer.remaining(), payloadRemaining);
+            int limit = receiveBuffer.limit();
+            int end = receiveBuffer.position() + count;
+            
+            if (payloadAccepted) {
+                receiveBuffer.limit(end);
                 try {
-                    Receiver<Message> r = receivers.get(message.getType());
-                    if (r != null) {
-                        r.received(message);
-                    }
-                } catch (IOException ioe) {
-                    ioe.printStackTrace();
+                    payloadConsumer.payloadData(receiveBuffer);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    payloadAccepted = false;
+                } finally {
+                    receiveBuffer.limit(limit);
                 }
+            }
+            receiveBuffer.position(end);
+            
+            payloadRemaining -= count;
+            if (payloadRemaining == 0)
+                finishPayload();
+        }
+        
+        private int readPayload(ReadableByteChannel in) throws IOException {
+            int read = payloadConsumer.readPayload(in, payloadRemaining);
+            if (read < 0)
+                throw new EOFException("Connection closed.");
+            
+            payloadRemaining -= read;
+            if (payloadRemaining == 0)
+                finishPayload();
+            return read;
+        }
+        
+        private void finishPayload() {
+            if (!payloadAccepted)
+                return;
+            
+            payloadAccepted = false;
+            try {
+                payloadConsumer.payloadFinished();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        
+        private void processMessage(ByteBuffer buffer) {
+            // Frames of unknown types, and of types that nobody receives,
+            // are skipped without being parsed.
+            short code = buffer.getShort(buffer.position() + 4);
+            if (!MessageTypes.isKnown(code) || receivers[code] == null)
+                return;
+            
+            Message message;
+            try {
+                message = Message.parseMessage(buffer);
             } catch (InvalidMessageException e) {
                 e.printStackTrace();
+                return;
+            }
+            
+            if (blocking[code])
+                dispatchBlocking(receivers[code], message);
+            else
+                deliver(receivers[code], message);
+        }
+        
+        /**
+         * Runs a blocking receiver on the worker pool. Reading stops until
+         * the receiver returns.
+         */
+        private void dispatchBlocking(final Receiver<Message> receiver,
+            final Message message)
+        {
+            blocked = true;
+            pauseReading();
+            
+            workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        deliver(receiver, message);
+                    } catch (RuntimeException e) {
+                        System.err.println("=== error in receiver ===");
+                        e.printStackTrace();
+                        MessageBroker.this.close();
+                    } finally {
+                        // Reading must resume however the receiver ended.
+                        reactor.execute(new Runnable() {
+                            public void run() {
+                                unblock();
+                            }
+                        });
+                    }
+                }
+            });
+        }
+        
+        /**
+         * Called on the reactor thread once a blocking receiver returns.
+         * Messages that were read while it ran are processed, and reading
+         * resumes.
+         */
+        private void unblock() {
+            blocked = false;
+            if (!closed) {
+                reading = true;
+                try {
+                    receiveBuffer.flip();
+                    processMessages();
+                    receiveBuffer.compact();
+                } catch (IOException e) {
+                    System.err.println(e);
+                    MessageBroker.this.close();
+                } finally {
+                    reading = false;
+                    if (closed)
+                        releaseBuffers();
+                }
+            }
+            resumeReading();
+        }
+        
+        private void deliver(Receiver<Message> receiver, Message message) {
+            try {
+                receiver.received(message);
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * Releases the resources held by the broker and its message sources
+     * (e.g., buffers and open files) when the broker's channel is closed.
+     */
+    private class SourceCloser implements CloseListener {
+        public void channelClosed(SelectableChannel channel,
+            Object attachment)
+        {
+            reader.close();
+            writer.releaseBuffers();
+            
+            synchronized (outgoing) {
+                closed = true;
+                if (writer.source != null) {
+                    writer.source.close();
+                    writer.source = null;
+                }
+                
+                MessageSource source;
+                while ((source = sources.poll()) != null)
+                    source.close();
             }
+            
+            if (closeListener != null)
+                closeListener.channelClosed(channel, attachment);
         }
     }
     
+    /**
+     * Writes queued messages to the channel. Each time the channel is
+     * writable, the writer gathers as many queued messages as it can into a
+     * single write call, and keeps going until the socket stops accepting
+     * data or the queue is empty.
+     */
     private class MessageWriter implements Listener {
-        private ByteBuffer buffer;
+        /** The most messages that are gathered into one write call. */
+        private static final int BATCH_SIZE = 64;
+        
+        /**
+         * The most bytes written in response to one event, so that one busy
+         * connection cannot starve the others on its reactor.
+         */
+        private static final long WRITE_BUDGET = 1024 * 1024;
+        
+        private ByteBuffer[] batch;
+        private int batchStart;
+        private int batchEnd;
+        private PayloadMessage transfer;
+        private long transferred;
         private MessageSource source;
         
         public MessageWriter() {
-            buffer = null;
+            batch = new ByteBuffer[BATCH_SIZE];
+            batchStart = 0;
+            batchEnd = 0;
+            transfer = null;
+            transferred = 0L;
             source = null;
         }
         
         public void ready(SelectableChannel channel) throws IOException {
-            if (buffer == null) {
-                synchronized (outgoing) {
-                    Message nextMessage = outgoing.poll();
-                    if (nextMessage == null)
-                        nextMessage = getFromSource();
-                    if (nextMessage == null) {
+            GatheringByteChannel out = (GatheringByteChannel) channel;
+            long written = 0L;
+            
+            while (written < WRITE_BUDGET) {
+                if (batchStart == batchEnd && transfer == null) {
+                    if (!fillBatch()) {
                         reactor.remove(channel, Operation.WRITE);
                         return;
                     }
+                }
+                
+                if (batchStart < batchEnd) {
+                    written += out.write(batch, batchStart,
+                        batchEnd - batchStart);
+                    while (batchStart < batchEnd &&
+                        !batch[batchStart].hasRemaining())
+                    {
+                        pool.release(batch[batchStart]);
+                        batch[batchStart++] = null;
+                    }
+                    if (batchStart < batchEnd)
+                        return; // the socket is full
+                }
+                
+                if (transfer != null) {
+                    long sent = transfer.transferBody(out, transferred);
+                    transferred += sent;
+                    written += sent;
+                    if (transferred < transfer.getBodyLength())
+                        return; // the socket is full
+                    transfer = null;
+                }
+            }
+        }
+        
+        /**
+         * Fills the batch with the encoded forms of queued messages. A
+         * file-backed payload ends the batch, since its body must follow
+         * its header directly.
+         * @return true if any messages were queued; false if there were none
+         */
+        private boolean fillBatch() {
+            batchStart = 0;
+            batchEnd = 0;
+            
+            synchronized (outgoing) {
+                // Leave room for a message that takes up two entries.
+                while (batchEnd < BATCH_SIZE - 1) {
+                    Message nextMessage = outgoing.poll();
+                    if (nextMessage == null)
+                        nextMessage = getFromSource();
+                    if (nextMessage == null)
+                        break;
                     
-                    buffer = nextMessage.getBytes();
+                    if (nextMessage instanceof PayloadMessage &&
+                        ((PayloadMessage) nextMessage).isFileBacked())
+                    {
+                        // Send only the header from memory; the body goes
+                        // straight from the file to the socket.
+                        transfer = (PayloadMessage) nextMessage;
+                        transferred = 0L;
+                        batch[batchEnd++] = transfer.getHeaderBytes(pool);
+                        break;
+                    } else if (nextMessage instanceof PayloadMessage &&
+                        ((PayloadMessage) nextMessage).getBodyBuffer() != null)
+                    {
+                        // Send the body from its own (pooled) buffer
+                        // instead of copying it.
+                        PayloadMessage payload = (PayloadMessage) nextMessage;
+                        batch[batchEnd++] = payload.getHeaderBytes(pool);
+                        batch[batchEnd++] = payload.getBodyBuffer();
+                        continue;
+                    }
+                    batch[batchEnd++] = nextMessage.getBytes(pool);
                 }
             }
             
-            if (buffer.hasRemaining()) {
-                ((ByteChannel) channel).write(buffer);
-            } else {
-                buffer = null;
+            return batchEnd > 0;
+        }
+        
+        /**
+         * Returns the buffers of unsent messages to the pool.
+         */
+        public void releaseBuffers() {
+            while (batchStart < batchEnd) {
+                pool.release(batch[batchStart]);
+                batch[batchStart++] = null;
             }
         }
         
@@ -174,9 +717,13 @@ public class MessageBroker {
                 }
 
                 if (source != null) {
+                    if (!source.isReady())
+                        break; // wait for sourceReady() to be called
                     message = source.next();
-                    if (message == null)
+                    if (message == null) {
+                        source.close();
                         source = null;
+                    }
                 } else {
                     break;
                 }
@@ -12,4 +12,19 @@ public interface MessageSource {
      * available, returns null.
      */
     public Message next();
+    
+    /**
+     * Returns true if the source's next message (or the fact that it has no
+     * more messages) is known; false if the source is still preparing it.
+     * A source that returns false must call its broker's {@link
+     * MessageBroker#sourceReady sourceReady} method once it is ready.
+     */
+    public boolean isReady();
+    
+    /**
+     * Called once the broker will not ask the source for any more messages,
+     * either because the source ran out or because the connection closed.
+     * The source should release any resources it holds.
+     */
+    public void close();
 }
@@ -0,0 +1,49 @@
+package commune.peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * An interface for objects that accept the bodies of payload messages as
+ * they arrive, instead of as whole messages.
+ *
+ * A broker that has a payload consumer never buffers a payload body. Any
+ * part of the body that arrived along with other data is handed to the
+ * consumer out of the broker's receive buffer; the rest is read from the
+ * socket by the consumer itself, straight into its destination.
+ */
+public interface PayloadConsumer {
+    /**
+     * Called when the header of a payload message has been read.
+     * @param requestID the ID of the request the payload answers
+     * @param offset the offset of the body within the requested file
+     * @param length the length of the body
+     * @return true if the consumer wants the body; false if it should be
+     *         discarded
+     */
+    public boolean payloadStarted(int requestID, long offset, int length)
+        throws IOException;
+    
+    /**
+     * Called with the next part of the body of the current payload. The
+     * consumer must take every remaining byte of the buffer before it
+     * returns, and must not keep a reference to the buffer.
+     */
+    public void payloadData(ByteBuffer data) throws IOException;
+    
+    /**
+     * Reads up to the given number of bytes of the current payload's body
+     * from the channel straight into their destination.
+     * @return the number of bytes read, or -1 if the channel has reached
+     *         end-of-stream
+     */
+    public int readPayload(ReadableByteChannel channel, int maximum)
+        throws IOException;
+    
+    /**
+     * Called once the whole body of the current payload has been passed to
+     * {@link payloadData}.
+     */
+    public void payloadFinished() throws IOException;
+}
@@ -1,5 +1,7 @@
 package commune.peer;
 
+import commune.net.Resolver;
+
 import java.net.InetAddress;
 import java.net.Inet6Address;
 import java.net.UnknownHostException;
@@ -16,6 +18,18 @@ import java.util.regex.*;
  * A Commune peer.
  */
 public class Peer implements Comparable<Peer> {
+    /**
+     * The largest frame that may be sent to a peer that does not report a
+     * maximum frame size.
+     */
+    public static final int DEFAULT_FRAME_SIZE = 512 * 1024;
+    
+    /**
+     * The smallest maximum frame size that a peer may report. Peers that
+     * report a smaller one are not spoken to.
+     */
+    public static final int MIN_FRAME_SIZE = 16 * 1024;
+    
     private static final Pattern ATTRIBUTE_SUFFIX =
         Pattern.compile("\\s+\\((.+)\\)$");
     private static final Pattern ATTRIBUTE_SEPARATOR =
@@ -23,10 +37,12 @@ public class Peer implements Comparable<Peer> {
     
     private long id;
     private String hostname;
+    private InetAddress address;
     private int port;
     private String userAgent;
     private long lastContact;
     private Set<String> attributes;
+    private int frameSize;
     
     public Peer(long id, String hostname, int port, String userAgent) {
         this(id, hostname, port, userAgent, System.currentTimeMillis());
@@ -34,14 +50,22 @@ public class Peer implements Comparable<Peer> {
     
     public Peer(long id, String hostname, int port, String userAgent,
         long lastContact)
+    {
+        this(id, hostname, null, port, userAgent, lastContact);
+    }
+    
+    private Peer(long id, String hostname, InetAddress address, int port,
+        String userAgent, long lastContact)
     {
         this.id = id;
         this.hostname = hostname.toLowerCase();
+        this.address = address;
         this.port = port;
         this.userAgent = userAgent;
         this.lastContact = lastContact;
         
         attributes = new HashSet<String>();
+        frameSize = DEFAULT_FRAME_SIZE;
         if (userAgent != null)
             parseUserAgent();
     }
@@ -50,14 +74,19 @@ public class Peer implements Comparable<Peer> {
         return fromAddress(address.getAddress(), address.getPort(), 0, null);
     }
     
+    /**
+     * Creates a peer at the given address. The peer is identified by the
+     * address itself; no name lookups are made.
+     */
     public static Peer fromAddress(InetAddress address, int port, long id,
         String userAgent)
     {
         if (address == null)
             return null;
-        String hostname = address.getCanonicalHostName();
+        String hostname = address.getHostAddress();
         
-        return new Peer(id, hostname, port, userAgent);
+        return new Peer(id, hostname, address, port, userAgent,
+            System.currentTimeMillis());
     }
     
     private Set<String> parseUserAgent() {
@@ -68,6 +97,17 @@ public class Peer implements Comparable<Peer> {
                 attributes.add(attribute);
         }
         
+        for (String attribute : attributes) {
+            if (attribute.startsWith("FRAME=")) {
+                try {
+                    frameSize = Integer.parseInt(attribute.substring(6));
+                } catch (NumberFormatException e) {
+                    frameSize = -1;
+                }
+                break;
+            }
+        }
+        
         return attributes;
     }
     
@@ -95,13 +135,34 @@ public class Peer implements Comparable<Peer> {
         return port;
     }
     
+    /**
+     * Returns the peer's IP address if it is known without a lookup: if the
+     * peer was created from an address, or if its host name has already
+     * been resolved.
+     * @return the peer's IP address, or <code>null</code> if it is not
+     *         known yet
+     */
+    public InetAddress getInetAddress() {
+        if (address != null)
+            return address;
+        
+        InetAddress[] addresses = Resolver.getDefault().getCached(hostname);
+        return (addresses != null && addresses.length > 0)
+            ? addresses[0]
+            : null;
+    }
+    
     /**
      * Returns a socket address that may be used to connect to the peer.
+     * This may block to resolve the peer's host name.
      * @return a socket address that may be used to connect to the peer.
      * @throws UnknownHostException if no such address can be determined
      */
     public InetSocketAddress getAddress() throws UnknownHostException {
-        InetAddress[] addresses = InetAddress.getAllByName(hostname);
+        if (address != null)
+            return new InetSocketAddress(address, port);
+        
+        InetAddress[] addresses = Resolver.getDefault().resolve(hostname);
         InetAddress blessed = null;
         
         for (InetAddress address : addresses) {
@@ -117,21 +178,69 @@ public class Peer implements Comparable<Peer> {
         return new InetSocketAddress(blessed, port);
     }
     
+    /**
+     * Returns all of the socket addresses at which the peer might be
+     * reached. This may block to resolve the peer's host name.
+     */
     public List<InetSocketAddress> getAddresses() {
-        List<InetSocketAddress> saddrs = new LinkedList<InetSocketAddress>();
         try {
-            InetAddress[] addresses = InetAddress.getAllByName(hostname);
-            
-            for (InetAddress possible : addresses) {
-                saddrs.add(new InetSocketAddress(possible, getPort()));
-            }
+            InetAddress[] addresses = (address != null)
+                ? new InetAddress[] { address }
+                : Resolver.getDefault().resolve(hostname);
+            return toSocketAddresses(addresses);
         } catch (UnknownHostException e) {
-            // ignore
+            return new LinkedList<InetSocketAddress>();
+        }
+    }
+    
+    /**
+     * Looks up all of the socket addresses at which the peer might be
+     * reached without blocking, and passes them to the given callback.
+     * The callback may be called on the calling thread.
+     */
+    public void getAddresses(final AddressCallback callback) {
+        if (address != null) {
+            callback.addressesFound(this,
+                toSocketAddresses(new InetAddress[] { address }));
+            return;
         }
         
+        Resolver.getDefault().resolve(hostname, new Resolver.Callback() {
+            public void resolved(String host, InetAddress[] addresses) {
+                callback.addressesFound(Peer.this,
+                    toSocketAddresses(addresses));
+            }
+            
+            public void failed(String host, UnknownHostException error) {
+                callback.addressesFound(Peer.this,
+                    new LinkedList<InetSocketAddress>());
+            }
+        });
+    }
+    
+    private List<InetSocketAddress> toSocketAddresses(
+        InetAddress[] addresses)
+    {
+        List<InetSocketAddress> saddrs = new LinkedList<InetSocketAddress>();
+        for (InetAddress possible : addresses) {
+            saddrs.add(new InetSocketAddress(possible, getPort()));
+        }
         return saddrs;
     }
     
+    /**
+     * An interface for objects that want to know a peer's addresses once
+     * they have been looked up.
+     */
+    public interface AddressCallback {
+        /**
+         * Called with the peer's addresses. The list is empty if the peer's
+         * host name could not be resolved.
+         */
+        public void addressesFound(Peer peer,
+            List<InetSocketAddress> addresses);
+    }
+    
     /**
      * Returns the user agent string for this peer.
      * @return user agent string for this peer
@@ -175,13 +284,72 @@ public class Peer implements Comparable<Peer> {
         return attributes.contains("PEX");
     }
     
+    /**
+     * Returns true if the peer reported support for piece root hashes
+     * (see {@link commune.source.PieceDigest}); false if otherwise.
+     * @return true if the peer reported support for piece root hashes;
+     *         false if otherwise
+     */
+    public boolean hashesPieces() {
+        return attributes.contains("PIECES");
+    }
+    
+    /**
+     * Returns true if the peer reported support for requests for part of a
+     * resource; false if otherwise.
+     * @return true if the peer reported support for range requests; false
+     *         if otherwise
+     */
+    public boolean servesRanges() {
+        return attributes.contains("RANGE");
+    }
+    
+    /**
+     * Returns true if the peer reported support for piece list messages;
+     * false if otherwise.
+     * @return true if the peer reported support for piece list messages;
+     *         false if otherwise
+     */
+    public boolean listsPieces() {
+        return attributes.contains("PIECELIST");
+    }
+    
+    /**
+     * Returns true if the peer did not report a maximum frame size, or if
+     * the size it reported is at least {@link MIN_FRAME_SIZE}; false if
+     * otherwise.
+     * @return true if the peer's reported frame size can be used; false if
+     *         otherwise
+     */
+    public boolean reportsValidFrameSize() {
+        return frameSize >= MIN_FRAME_SIZE;
+    }
+    
+    /**
+     * Returns the size, in bytes, of the largest frame that should be sent
+     * to the peer. This is the size reported by its <code>FRAME=</code>
+     * attribute, but never more than the largest frame the local peer
+     * accepts itself, nor less than {@link MIN_FRAME_SIZE}.
+     * @return size of the largest frame that should be sent to the peer
+     */
+    public int getMaximumFrameSize() {
+        return Math.max(MIN_FRAME_SIZE,
+            Math.min(frameSize, MessageBroker.MAX_FRAME_SIZE));
+    }
+    
     public boolean equals(Object other) {
         return (other instanceof Peer) ? equals((Peer) other) : false;
     }
     
+    /**
+     * Returns true if the other peer is the same peer. Peers with IDs are
+     * the same if their IDs are; a peer with an ID is never the same as one
+     * without. Peers without IDs are the same if they have the same address
+     * (see {@link sameAddress}).
+     */
     public boolean equals(Peer other) {
         long otherID = other.getID();
-        if (id != 0 && otherID != 0)
+        if (id != 0 || otherID != 0)
             return id == otherID;
         return sameAddress(other);
     }
@@ -194,12 +362,14 @@ public class Peer implements Comparable<Peer> {
         return (int) (other.getLastContact() - lastContact);
     }
     
+    /**
+     * Hashes the peer by its ID if it has one, and otherwise by its host and
+     * port, consistently with {@link equals}. No lookups are made.
+     */
     public int hashCode() {
-        try {
-            return getAddress().hashCode();
-        } catch (UnknownHostException e) {
-            return super.hashCode();
-        }
+        if (id != 0)
+            return (int) (id ^ (id >>> 32));
+        return 31 * hostname.hashCode() + port;
     }
     
     public String toString() {
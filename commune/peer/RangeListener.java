@@ -0,0 +1,31 @@
+package commune.peer;
+
+import java.io.IOException;
+
+/**
+ * An interface for objects that follow a request for part of a file. The
+ * requested data is written into a file that the listener provides, at
+ * the offsets it has in the requested resource.
+ *
+ * The listener's methods may be called on any thread.
+ */
+public interface RangeListener {
+    /**
+     * Called when the other peer accepts the request.
+     * @param resource the resource that the other peer is sending
+     * @return true if the data should be written; false if the request
+     *         should be abandoned (e.g., because the resource is not the
+     *         one that was expected)
+     */
+    public boolean rangeStarted(Resource resource);
+    
+    /**
+     * Called once all of the requested data has been written.
+     */
+    public void rangeCompleted();
+    
+    /**
+     * Called if the request fails. The data may have been partly written.
+     */
+    public void rangeFailed(IOException error);
+}
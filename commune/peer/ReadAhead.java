@@ -0,0 +1,97 @@
+package commune.peer;
+
+import commune.net.BufferPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.*;
+
+/**
+ * A stage that reads served files ahead of the connections sending them.
+ *
+ * Reading a file whose contents are not in the page cache blocks until the
+ * disk delivers them, and a reactor thread that blocks holds up every
+ * connection it serves. Responses therefore have the chunks they are about
+ * to send read into pooled buffers on the read-ahead stage's own threads,
+ * and only hand a chunk to their broker once it has been read.
+ */
+public class ReadAhead {
+    private static final ReadAhead DEFAULT_READ_AHEAD = new ReadAhead(2);
+    
+    /**
+     * An interface for objects that want to know the result of a read.
+     * Its methods are called on the read-ahead stage's threads.
+     */
+    public interface Callback {
+        /**
+         * Called when the data has been read. The callback owns the buffer,
+         * which was acquired from the pool given to {@link read}.
+         */
+        public void read(ByteBuffer buffer);
+        
+        /**
+         * Called when the data could not be read.
+         */
+        public void failed(IOException error);
+    }
+    
+    private ExecutorService readService;
+    
+    /**
+     * Creates a new read-ahead stage.
+     * @param threads the number of threads on which to read
+     */
+    public ReadAhead(int threads) {
+        readService = Executors.newFixedThreadPool(threads,
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ReadAhead");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+    
+    /**
+     * Returns the read-ahead stage shared by the whole application.
+     * @return read-ahead stage shared by the whole application
+     */
+    public static ReadAhead getDefault() {
+        return DEFAULT_READ_AHEAD;
+    }
+    
+    /**
+     * Reads part of a file into a pooled buffer in the background.
+     * @param file the file to read from
+     * @param position the position in the file to start reading at
+     * @param length the number of bytes to read
+     * @param pool the pool to acquire the buffer from
+     * @param callback the callback to give the buffer to
+     */
+    public void read(final FileChannel file, final long position,
+        final int length, final BufferPool pool, final Callback callback)
+    {
+        readService.execute(new Runnable() {
+            public void run() {
+                ByteBuffer buffer = pool.acquire(length);
+                try {
+                    while (buffer.hasRemaining()) {
+                        int read = file.read(buffer,
+                            position + buffer.position());
+                        if (read < 0)
+                            throw new EOFException("File ended early.");
+                    }
+                } catch (IOException e) {
+                    pool.release(buffer);
+                    callback.failed(e);
+                    return;
+                }
+                
+                buffer.flip();
+                callback.read(buffer);
+            }
+        });
+    }
+}
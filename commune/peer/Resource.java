@@ -10,14 +10,22 @@ public class Resource {
     private long length;
     private String contentType;
     private byte[] digest;
+    private byte[] rootDigest;
     
     public Resource(String path, long length, String contentType,
         byte[] digest)
+    {
+        this(path, length, contentType, digest, null);
+    }
+    
+    public Resource(String path, long length, String contentType,
+        byte[] digest, byte[] rootDigest)
     {
         this.path = path;
         this.length = length;
         this.contentType = contentType;
         this.digest = digest;
+        this.rootDigest = rootDigest;
     }
     
     /**
@@ -52,6 +60,14 @@ public class Resource {
         return digest;
     }
     
+    /**
+     * Returns the root hash of the resource's pieces, if it is known.
+     * @return root hash of the resource's pieces, or <code>null</code>
+     */
+    public byte[] getRootDigest() {
+        return rootDigest;
+    }
+    
     public boolean equals(Object other) {
         return (other instanceof Resource)
             ? equals((Resource) other)
@@ -62,6 +78,10 @@ public class Resource {
         if (length != other.getLength())
             return false;
         
+        byte[] otherRoot = other.getRootDigest();
+        if (rootDigest != null && otherRoot != null)
+            return Arrays.equals(rootDigest, otherRoot);
+        
         byte[] otherDigest = other.getDigest();
         if (digest == null || otherDigest == null)
             return false;
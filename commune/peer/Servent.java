@@ -1,9 +1,12 @@
 package commune.peer;
 
 import commune.net.Reactor;
+import commune.net.ReactorGroup;
 import commune.net.Listener;
 import commune.net.Operation;
 import commune.net.CloseListener;
+import commune.net.TimeoutTask;
+import commune.net.Resolver;
 import commune.source.*;
 
 import java.io.*;
@@ -11,8 +14,10 @@ import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A servent: a client and server rolled into one.
@@ -23,27 +28,36 @@ import java.util.concurrent.ExecutionException;
  */
 public class Servent {
     private long localID;
-    private Reactor reactor;
+    private ReactorGroup reactors;
     private Source source;
     private File storageFolder;
     private int connectionLimit;
     private Map<Peer, Connection> connections;
+    private Map<Peer, ConnectAttempt> attempts;
     private Map<Long, Peer> knownPeers;
     private Set<Long> deadPeers;
-    private ServerSocketChannel serverChannel;
+    private List<ServerSocketChannel> serverChannels;
     private InetSocketAddress localAddress;
     private PeerListener updater;
     private Random entropy;
+    private int connectTimeout;
     
     public static final int DEFAULT_PORT = 2375;
     
+    /**
+     * The number of milliseconds to wait for a connection attempt to one of
+     * a peer's addresses before also trying the next address.
+     */
+    private static final long CONNECT_STAGGER = 250L;
+    
     /**
      * Creates a new servent.
      *
      * The servent will not immediately begin listening for connections;
      * use {@link listen} to begin listening on a port.
      * 
-     * @param reactor the reactor to use to manage sockets
+     * @param reactors the group of reactors to use to manage sockets; each
+     *        connection is assigned to one of the group's reactors
      * @param source the source that provides the resources available on this
      *        servent
      * @param storageFolder the folder to which resources downloaded from
@@ -55,10 +69,10 @@ public class Servent {
      *        and manual requests for a connection will never fail for
      *        exceeding this limit.
      */
-    public Servent(Reactor reactor, Source source, File storageFolder,
+    public Servent(ReactorGroup reactors, Source source, File storageFolder,
         int connectionLimit)
     {
-        this.reactor = reactor;
+        this.reactors = reactors;
         this.source = source;
         this.storageFolder = storageFolder;
         this.connectionLimit = connectionLimit;
@@ -68,13 +82,15 @@ public class Servent {
         
         connections = Collections.synchronizedMap(
             new HashMap<Peer, Connection>());
+        attempts = new ConcurrentHashMap<Peer, ConnectAttempt>();
+        connectTimeout = 10000;
         knownPeers = Collections.synchronizedMap(
             new HashMap<Long, Peer>());
         deadPeers = Collections.synchronizedSet(new HashSet<Long>());
         updater = new PeerUpdater();
-        reactor.addCloseListener(new Disconnecter());
+        reactors.addCloseListener(new Disconnecter());
         
-        serverChannel = null;
+        serverChannels = new ArrayList<ServerSocketChannel>();
         
         new KeepAliveThread().start();
     }
@@ -87,21 +103,82 @@ public class Servent {
         return localID;
     }
     
+    /**
+     * Creates a new servent whose connections are all managed by a single
+     * reactor.
+     */
+    public Servent(Reactor reactor, Source source, File storageFolder,
+        int connectionLimit)
+    {
+        this(new ReactorGroup(reactor), source, storageFolder,
+            connectionLimit);
+    }
+    
     /**
      * Starts listening for peer connections on the given port.
      */
     public void listen(int port) throws IOException {
-        serverChannel = ServerSocketChannel.open();
-        
-        ServerSocket socket = serverChannel.socket();
-        socket.bind(new InetSocketAddress(port));
-        serverChannel.configureBlocking(false);
-        System.out.printf("Listening for peer connections on port %d%n", port);
+        listen(port, 1);
+    }
+    
+    /**
+     * Starts listening for peer connections on the given port.
+     * 
+     * With a single shard, one server socket is watched by the group's first
+     * reactor, and accepted connections are handed off to the group's
+     * reactors in turn. With more than one shard, that many server sockets
+     * are bound to the port with SO_REUSEPORT, each on its own reactor, and
+     * the operating system spreads incoming connections among them; each
+     * shard keeps the connections it accepts on its own reactor.
+     * 
+     * @param port the port to listen on
+     * @param shards the number of server sockets to bind to the port
+     */
+    public void listen(int port, int shards) throws IOException {
+        if (shards > 1 && !supportsReusePort()) {
+            System.err.println("warning: SO_REUSEPORT is not supported; " +
+                "listening with a single socket");
+            shards = 1;
+        }
         
-        localAddress =
-            (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+        for (int i = 0; i < shards; i++) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            if (shards > 1) {
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT,
+                    true);
+            }
+            
+            ServerSocket socket = serverChannel.socket();
+            socket.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannels.add(serverChannel);
+            
+            if (localAddress == null) {
+                localAddress = (InetSocketAddress)
+                    serverChannel.socket().getLocalSocketAddress();
+                port = localAddress.getPort();
+            }
+            
+            Reactor acceptor = reactors.get(i % reactors.size());
+            acceptor.listen(serverChannel, Operation.ACCEPT,
+                new AcceptListener((shards > 1) ? acceptor : null));
+        }
         
-        reactor.listen(serverChannel, Operation.ACCEPT, new AcceptListener());
+        System.out.printf("Listening for peer connections on port %d%n", port);
+    }
+    
+    private static boolean supportsReusePort() {
+        try {
+            ServerSocketChannel probe = ServerSocketChannel.open();
+            try {
+                return probe.supportedOptions().contains(
+                    StandardSocketOptions.SO_REUSEPORT);
+            } finally {
+                probe.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
     }
     
     /**
@@ -132,15 +209,12 @@ public class Servent {
         synchronized (knownPeers) {
             peerList = new ArrayList<Peer>(knownPeers.size());
             for (Peer peer : knownPeers.values()) {
-                try {
-                    if (peer.getAddress().getAddress().isLoopbackAddress())
-                        continue;
-                    if (exclude != null && connections.get(peer) == exclude)
-                        continue;
-                    peerList.add(peer);
-                } catch (UnknownHostException e) {
-                    // ignore that peer
-                }
+                InetAddress address = peer.getInetAddress();
+                if (address != null && address.isLoopbackAddress())
+                    continue;
+                if (exclude != null && connections.get(peer) == exclude)
+                    continue;
+                peerList.add(peer);
             }
         }
         
@@ -150,14 +224,19 @@ public class Servent {
     }
     
     /**
-     * Returns a list of peers to which there are currently no connections.
+     * Returns a list of peers to which there are currently no connections
+     * and no connection attempts in progress.
      */
     public List<Peer> getUnconnectedPeers() {
         List<Peer> unconnected = new LinkedList<Peer>();
         
         for (Peer peer : getKnownPeers()) {
-            if (!connections.containsKey(peer) && !deadPeers.contains(peer.getID()))
+            if (!connections.containsKey(peer) &&
+                !attempts.containsKey(peer) &&
+                !deadPeers.contains(peer.getID()))
+            {
                 unconnected.add(peer);
+            }
         }
         return unconnected;
     }
@@ -171,48 +250,50 @@ public class Servent {
     }
     
     /**
-     * Returns the true if the number of open connections is less than the
-     * soft connection limit; false if otherwise.
+     * Returns the true if the number of open connections (counting those
+     * still being established) is less than the soft connection limit; false
+     * if otherwise.
      * @return true if the number of open connections is less than the
      * soft connection limit; false if otherwise
      */
     public boolean isBelowLimit() {
-        return (connections.size() < connectionLimit);
+        return (connections.size() + attempts.size() < connectionLimit);
     }
     
     /**
-     * Opens a connection to any known, unconnected peer.
-     * @return the newly-opened connection. If there are no known peers without
+     * Returns the number of milliseconds to wait for a connection to a peer
+     * to be established.
+     * @return number of milliseconds to wait for a connection to a peer to
+     *         be established
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+    
+    /**
+     * Sets the number of milliseconds to wait for a connection to a peer to
+     * be established.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+    
+    /**
+     * Starts opening a connection to any known, unconnected peer.
+     * @return the future connection. If there are no known peers without
      *         connections, <code>null</code> will be returned.
      */
-    public Connection openConnection() throws IOException {
-        Peer peer = null;
-        try {
-            List<Peer> available = getUnconnectedPeers();
-            if (available.size() <= 0)
-                return null;
-            peer = available.get(0);
-            return getConnection(peer);
-        } catch (IOException e) {
-            if (peer != null) {
-                knownPeers.remove(peer.getID());
-                deadPeers.add(peer.getID());
-            }
-            throw (IOException) new IOException(
-                String.format("Failed to connect to %s.", peer)).initCause(e);
-        }
+    public Future<Connection> openConnection() {
+        List<Peer> available = getUnconnectedPeers();
+        if (available.size() <= 0)
+            return null;
+        return connect(available.get(0));
     }
     
     private void openConnections() {
         while (isBelowLimit()) {
-            try {
-                if (openConnection() == null)
-                    break;
-            } catch (IOException e) {
-                System.err.println(e.getMessage());
-                if (e.getCause() != null)
-                    System.err.printf("    %s%n", e.getCause().getMessage());
-            }
+            if (openConnection() == null)
+                break;
         }
     }
     
@@ -221,7 +302,7 @@ public class Servent {
      * if necessary.
      */
     public Connection getConnection(String host, int port) throws IOException {
-        InetAddress hostAddress = InetAddress.getByName(host);
+        InetAddress hostAddress = Resolver.getDefault().resolve(host)[0];
         InetSocketAddress address = new InetSocketAddress(hostAddress, port);
         return getConnection(address);
     }
@@ -241,25 +322,72 @@ public class Servent {
     
     /**
      * Gets a connection to the given peer, opening it if necessary.
+     * 
+     * This method blocks until the connection is established or fails, so
+     * it must not be called from a reactor thread; use {@link connect}
+     * there instead.
      */
     public Connection getConnection(Peer peer) throws IOException {
+        try {
+            return connect(peer).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw (IOException) new IOException(
+                String.format("Failed to connect to %s.", peer)).
+                initCause(cause);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+    
+    /**
+     * Starts opening a connection to the given peer, unless one is already
+     * open or being opened. This method never blocks.
+     * 
+     * A connection is attempted to each of the peer's addresses in turn,
+     * with a new attempt starting whenever the previous one fails or has not
+     * succeeded within a short delay. The first attempt to succeed wins and
+     * the others are abandoned. If no attempt succeeds within the connect
+     * timeout, the peer is marked as dead.
+     * 
+     * @return the future connection
+     */
+    public Future<Connection> connect(Peer peer) {
+        if (peer.getID() == 0) {
+            // Peers without IDs are not equal to the known peers they
+            // describe, so look for the known peer at the same address.
+            Peer known = getEquivalentPeer(peer);
+            if (known != null)
+                peer = known;
+        }
+        
         Connection connection = connections.get(peer);
         if (connection != null) {
             if (connection.isConnected()) {
-                return connection;
+                FutureTask<Connection> task = new FutureTask<Connection>();
+                task.set(connection);
+                return task;
             } else {
                 updater.peerDisconnected(peer);
-            } 
+            }
+        }
+        
+        ConnectAttempt attempt;
+        // Lookups elsewhere are unlocked, but the check and the insertion
+        // here must happen together.
+        synchronized (attempts) {
+            attempt = attempts.get(peer);
+            if (attempt != null)
+                return attempt.getTask();
+            
+            attempt = new ConnectAttempt(peer, reactors.next());
+            attempts.put(peer, attempt);
         }
         
-        SocketChannel channel = SocketChannel.open();
-        channel.connect(peer.getAddress());
-        channel.configureBlocking(false);
-        connection = new Connection(reactor, channel, source, updater,
-            storageFolder, localID, localAddress.getPort(), peer.getID());
-        connections.put(peer, connection);
-        connection.sendHello();
-        return connection;
+        attempt.start();
+        return attempt.getTask();
     }
     
     /**
@@ -299,16 +427,283 @@ public class Servent {
         return found;
     }
     
+    /**
+     * Downloads a resource from all of the given peers at once (see
+     * {@link Swarm}). Peers that do not serve ranges, or that cannot be
+     * reached, are left out.
+     * 
+     * This method blocks while connections to the peers are opened.
+     * 
+     * @param resource the resource, as described by every one of the peers
+     * @return a future that yields the downloaded file
+     * @throws IOException if none of the peers can take part
+     */
+    public Future<File> download(Resource resource, Collection<Peer> peers)
+        throws IOException
+    {
+        String[] parts = resource.getPath().split("/");
+        File outputFile = new File(storageFolder, parts[parts.length - 1]);
+        Swarm swarm = new Swarm(resource.getPath(), resource, outputFile);
+        
+        for (Peer peer : peers) {
+            if (!peer.servesRanges())
+                continue;
+            try {
+                swarm.addSource(getConnection(peer));
+            } catch (IOException e) {
+                // leave the peer out
+            }
+        }
+        
+        if (swarm.getSourceCount() == 0) {
+            throw new IOException("None of the peers can serve " +
+                resource.getPath() + " in pieces.");
+        }
+        return swarm.start();
+    }
+    
+    /**
+     * Accepts new connections and hands each of them to a reactor, which
+     * will manage that connection for as long as it is open.
+     */
     private class AcceptListener implements Listener {
+        private Reactor target;
+        
+        /**
+         * @param target the reactor that should manage accepted
+         *        connections, or <code>null</code> to spread them across
+         *        the servent's reactor group
+         */
+        public AcceptListener(Reactor target) {
+            this.target = target;
+        }
+        
         public void ready(SelectableChannel channel) throws IOException {
-            SocketChannel client = serverChannel.accept();
-            client.configureBlocking(false);
+            SocketChannel client;
+            while ((client = ((ServerSocketChannel) channel).accept()) != null)
+            {
+                client.configureBlocking(false);
+                
+                Reactor reactor = (target != null) ? target : reactors.next();
+                Connection con = new Connection(reactor, client, source,
+                    updater, storageFolder, localID, localAddress.getPort(),
+                    0L);
+                // System.out.printf("got new connection from %s%n",
+                //     con.describeAddress());
+            }
+        }
+    }
+    
+    /**
+     * Opens a connection to one of a peer's addresses without blocking.
+     * 
+     * All of the attempt's work after {@link start} is done on a single
+     * reactor, which also becomes the reactor of the resulting connection.
+     */
+    private class ConnectAttempt
+        implements Listener, TimeoutTask, Runnable, Peer.AddressCallback
+    {
+        private Peer peer;
+        private Reactor reactor;
+        private FutureTask<Connection> task;
+        private Queue<InetSocketAddress> addresses;
+        private List<SocketChannel> pending;
+        private IOException lastError;
+        private boolean finished;
+        
+        public ConnectAttempt(Peer peer, Reactor reactor) {
+            this.peer = peer;
+            this.reactor = reactor;
+            task = new FutureTask<Connection>();
+            addresses = null;
+            pending = new LinkedList<SocketChannel>();
+            lastError = null;
+            finished = false;
+        }
+        
+        /**
+         * Returns the future connection.
+         * @return future connection
+         */
+        public FutureTask<Connection> getTask() {
+            return task;
+        }
+        
+        /**
+         * Starts the attempt by looking up the peer's addresses, which
+         * never blocks the calling thread.
+         */
+        public void start() {
+            peer.getAddresses(this);
+        }
+        
+        public void addressesFound(Peer peer,
+            List<InetSocketAddress> found)
+        {
+            if (found.isEmpty()) {
+                failed(new UnknownHostException(peer.getHost()));
+                return;
+            }
             
-            Connection con = new Connection(reactor, client, source,
-                updater, storageFolder, localID, localAddress.getPort(), 0L);
-            // System.out.printf("got new connection from %s%n",
-            //     con.describeAddress());
+            addresses = orderAddresses(found);
+            reactor.execute(this);
         }
+        
+        /**
+         * Starts connecting to the next address. Runs on the reactor thread.
+         */
+        public void run() {
+            if (finished)
+                return;
+            
+            InetSocketAddress address = addresses.poll();
+            if (address == null) {
+                if (pending.isEmpty())
+                    failed(lastError);
+                return;
+            }
+            
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(address)) {
+                    succeeded(channel);
+                    return;
+                }
+            } catch (IOException e) {
+                lastError = e;
+                abandon(channel);
+                run();
+                return;
+            }
+            
+            pending.add(channel);
+            reactor.listen(channel, Operation.CONNECT, this);
+            reactor.timeout(channel, EnumSet.of(Operation.CONNECT),
+                connectTimeout, TimeUnit.MILLISECONDS, this);
+            if (!addresses.isEmpty())
+                reactor.schedule(this, CONNECT_STAGGER, TimeUnit.MILLISECONDS);
+        }
+        
+        /**
+         * Called when one of the attempt's sockets has connected (or failed
+         * to).
+         */
+        public void ready(SelectableChannel channel) {
+            SocketChannel socket = (SocketChannel) channel;
+            pending.remove(socket);
+            
+            try {
+                if (!socket.finishConnect()) {
+                    pending.add(socket);
+                    return;
+                }
+            } catch (IOException e) {
+                lastError = e;
+                abandon(socket);
+                run();
+                return;
+            }
+            
+            if (finished) {
+                abandon(socket);
+                return;
+            }
+            
+            reactor.remove(socket, Operation.CONNECT);
+            succeeded(socket);
+        }
+        
+        /**
+         * Called when one of the attempt's sockets has not connected within
+         * the connect timeout.
+         */
+        public void timedOut(SelectableChannel channel) {
+            pending.remove(channel);
+            lastError = new SocketTimeoutException(String.format(
+                "Timed out connecting to %s.", peer));
+            abandon(channel);
+            
+            // No other address will get longer than this one did.
+            addresses.clear();
+            if (pending.isEmpty())
+                failed(lastError);
+        }
+        
+        private void succeeded(SocketChannel channel) {
+            finished = true;
+            for (SocketChannel loser : pending)
+                abandon(loser);
+            pending.clear();
+            
+            attempts.remove(peer);
+            
+            try {
+                Connection connection = new Connection(reactor, channel,
+                    source, updater, storageFolder, localID,
+                    localAddress.getPort(), peer.getID());
+                connections.put(peer, connection);
+                connection.sendHello();
+                task.set(connection);
+            } catch (IOException e) {
+                abandon(channel);
+                failed(e);
+            }
+        }
+        
+        private void failed(IOException error) {
+            finished = true;
+            attempts.remove(peer);
+            
+            knownPeers.remove(peer.getID());
+            deadPeers.add(peer.getID());
+            
+            IOException e = (IOException) new IOException(
+                String.format("Failed to connect to %s.", peer)).
+                initCause(error);
+            System.err.println(e.getMessage());
+            if (error != null)
+                System.err.printf("    %s%n", error.getMessage());
+            task.setError(e);
+        }
+        
+        private void abandon(SelectableChannel channel) {
+            if (channel == null)
+                return;
+            
+            reactor.cancel(channel);
+            try {
+                channel.close();
+            } catch (IOException ignored) { /* ignore */ }
+        }
+    }
+    
+    /**
+     * Orders a peer's addresses for connection attempts: IPv6 and IPv4
+     * addresses are interleaved, starting with IPv6.
+     */
+    private static Queue<InetSocketAddress> orderAddresses(
+        List<InetSocketAddress> addresses)
+    {
+        LinkedList<InetSocketAddress> v6 = new LinkedList<InetSocketAddress>();
+        LinkedList<InetSocketAddress> v4 = new LinkedList<InetSocketAddress>();
+        
+        for (InetSocketAddress address : addresses) {
+            if (address.getAddress() instanceof Inet6Address)
+                v6.add(address);
+            else
+                v4.add(address);
+        }
+        
+        Queue<InetSocketAddress> ordered = new LinkedList<InetSocketAddress>();
+        while (!v6.isEmpty() || !v4.isEmpty()) {
+            if (!v6.isEmpty())
+                ordered.offer(v6.removeFirst());
+            if (!v4.isEmpty())
+                ordered.offer(v4.removeFirst());
+        }
+        return ordered;
     }
     
     /**
@@ -353,13 +748,16 @@ public class Servent {
             synchronized (connections) {
                 InetSocketAddress remote =
                     (InetSocketAddress) connection.getRemoteAddress();
-                for (Map.Entry<Peer, Connection> e : connections.entrySet()) {
+                Iterator<Map.Entry<Peer, Connection>> it =
+                    connections.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Peer, Connection> e = it.next();
                     Peer existingPeer = e.getKey();
                     Connection existingCon = e.getValue();
                     if (existingCon == connection) {
                         if (connectedToSelf)
                             knownPeers.remove(existingPeer.getID());
-                        connections.remove(existingPeer);
+                        it.remove();
                     } else if (remote.equals(existingCon.getRemoteAddress())) {
                         System.err.printf("duplicate connection to %s%n",
                             connection.describeAddress());
@@ -451,6 +849,11 @@ public class Servent {
     private class Disconnecter implements CloseListener {
         public void channelClosed(SelectableChannel channel, Object attachment)
         {
+            if (attachment == null) {
+                // not a peer connection
+                return;
+            }
+            
             try {
                 Connection con = (Connection) attachment;
                 updater.peerDisconnected(con.getPeer());
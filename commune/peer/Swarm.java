@@ -0,0 +1,484 @@
+package commune.peer;
+
+import commune.source.PieceDigest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A download that fetches the pieces of a file from several peers at once.
+ *
+ * Every peer in the swarm holds an identical copy of the resource, and
+ * serves ranges of it. The file is split into pieces of
+ * {@link PieceDigest#PIECE_SIZE} bytes, and each peer is kept busy with a
+ * few piece requests at a time. A peer is handed a new piece as soon as one
+ * of its pieces has been written, so faster peers fetch more of the file.
+ *
+ * A bitmap records which pieces are complete, and pieces are requested in
+ * order. Once every missing piece has been requested, idle peers also
+ * request the pieces still in flight elsewhere (the "endgame"), so that one
+ * slow peer cannot hold up the end of the download. A piece that more than
+ * one peer has sent is read back and checked again when any of its copies
+ * completes or fails, since a corrupt copy may have overwritten a good one.
+ *
+ * Completed pieces are recorded in the download's progress record as they
+ * are written, so an interrupted download can be resumed.
+ *
+ * If one of the peers lists pieces, the hashes of the file's pieces are
+ * fetched before the download starts, and every piece is checked against
+ * its hash as it arrives, whichever peer sent it. A peer that sends a
+ * corrupt piece is dropped from the swarm, and the piece is fetched again
+ * from another peer. Without the piece hashes, the whole file is checked
+ * against its digest once every piece has arrived.
+ */
+public class Swarm {
+    /** The number of piece requests each peer is given at a time. */
+    private static final int PIPELINE_DEPTH = 2;
+    
+    /** The number of pieces completed between updates to the progress. */
+    private static final int SAVE_INTERVAL = 8;
+    
+    /**
+     * The number of seconds to wait for a peer to send the piece hashes,
+     * which it may have to compute first, before asking the next peer.
+     */
+    private static final int PIECES_TIMEOUT = 30;
+    
+    private String path;
+    private Resource resource;
+    private File outputFile;
+    private RandomAccessFile outputAccess;
+    private DownloadProgress progress;
+    private PieceDigest pieces;
+    private int pieceCount;
+    private BitSet completed;
+    private int[] inFlight;
+    private BitSet shared;
+    private List<Member> members;
+    private int unsaved;
+    private FutureTask<File> task;
+    private boolean finished;
+    
+    /**
+     * Creates a new swarm download.
+     * @param path the path of the resource on the other peers
+     * @param resource the resource that every peer holds
+     * @param outputFile the file to download the resource into
+     */
+    public Swarm(String path, Resource resource, File outputFile) {
+        this.path = path;
+        this.resource = resource;
+        this.outputFile = outputFile;
+        pieceCount = PieceDigest.getPieceCount(resource.getLength());
+        completed = new BitSet(pieceCount);
+        inFlight = new int[pieceCount];
+        shared = new BitSet(pieceCount);
+        members = new ArrayList<Member>();
+        unsaved = 0;
+        task = new FutureTask<File>();
+        finished = false;
+    }
+    
+    /**
+     * Adds a peer to the swarm. Must be called before {@link start}.
+     * @param connection a connection to a peer that serves ranges
+     */
+    public synchronized void addSource(Connection connection) {
+        members.add(new Member(connection));
+    }
+    
+    /**
+     * Returns the number of peers in the swarm.
+     * @return number of peers in the swarm
+     */
+    public synchronized int getSourceCount() {
+        return members.size();
+    }
+    
+    /**
+     * Starts the download. If the output file holds part of the same
+     * resource from an earlier download, only the missing pieces are
+     * fetched.
+     * @return a future that yields the output file once the whole resource
+     *         has been written
+     */
+    public synchronized Future<File> start() throws IOException {
+        byte[] identity = (resource.getRootDigest() != null)
+            ? resource.getRootDigest()
+            : resource.getDigest();
+        
+        DownloadProgress existing = DownloadProgress.load(outputFile);
+        if (existing != null &&
+            existing.matches(resource.getLength(), identity))
+        {
+            progress = existing;
+            restoreProgress();
+        } else {
+            progress = new DownloadProgress(outputFile, resource.getLength(),
+                identity);
+            progress.save(0L, completed);
+        }
+        
+        outputAccess = new RandomAccessFile(outputFile, "rw");
+        outputAccess.setLength(resource.getLength());
+        
+        pieces = fetchPieces();
+        if (pieces == null) {
+            System.err.printf("warning: pieces of %s cannot be checked " +
+                "until the whole file has arrived%n", path);
+        } else if (!completed.isEmpty()) {
+            checkRestored();
+        }
+        
+        if (completed.cardinality() == pieceCount)
+            finish();
+        else
+            schedule();
+        return task;
+    }
+    
+    /**
+     * Marks the pieces that an earlier download completed.
+     */
+    private void restoreProgress() {
+        long prefix = progress.getCompleted();
+        for (int i = 0; i < pieceCount; i++) {
+            long pieceEnd = Math.min((long) (i + 1) * PieceDigest.PIECE_SIZE,
+                resource.getLength());
+            if (pieceEnd <= prefix)
+                completed.set(i);
+        }
+        
+        BitSet pieces = progress.getPieces();
+        if (pieces != null)
+            completed.or(pieces.get(0, pieceCount));
+    }
+    
+    /**
+     * Fetches the hashes of the file's pieces from the first peer that can
+     * send hashes matching the resource's root hash.
+     * @return the piece hashes, or <code>null</code> if no peer sent them
+     */
+    private PieceDigest fetchPieces() {
+        if (resource.getRootDigest() == null)
+            return null;
+        
+        for (Member member : members) {
+            if (!member.connection.getPeer().listsPieces())
+                continue;
+            
+            try {
+                Future<PieceDigest> request = member.connection
+                    .requestPieces(path, resource.getLength());
+                PieceDigest list = request.get(PIECES_TIMEOUT,
+                    TimeUnit.SECONDS);
+                if (Arrays.equals(list.getRoot(), resource.getRootDigest()) &&
+                    list.getPieceCount() == pieceCount)
+                {
+                    return list;
+                }
+            } catch (IOException e) {
+                // try the next peer
+            } catch (ExecutionException e) {
+                // try the next peer
+            } catch (TimeoutException e) {
+                System.err.printf("warning: %s did not send the pieces of " +
+                    "%s in time%n", member.connection.describeAddress(),
+                    path);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Checks the pieces that an earlier download completed against their
+     * hashes, so that corrupt ones are fetched again.
+     */
+    private void checkRestored() throws IOException {
+        Verifier verifier = new Verifier(outputAccess.getChannel(), 0L,
+            resource.getLength(), pieces, resource.getLength());
+        for (int i = completed.nextSetBit(0); i >= 0;
+            i = completed.nextSetBit(i + 1))
+        {
+            long pieceStart = (long) i * PieceDigest.PIECE_SIZE;
+            verifier.alreadyWritten(pieceStart, Math.min(pieceStart +
+                PieceDigest.PIECE_SIZE, resource.getLength()));
+        }
+        
+        BitSet corrupt = verifier.checkWritten();
+        if (corrupt != null) {
+            System.out.printf("%d piece(s) of %s from an earlier download " +
+                "are corrupt%n", corrupt.cardinality(), path);
+            completed.andNot(corrupt);
+        }
+    }
+    
+    /**
+     * Gives every peer with room in its pipeline another piece to fetch.
+     */
+    private void schedule() {
+        if (finished)
+            return;
+        
+        boolean active = false;
+        for (Member member : members) {
+            if (member.failed)
+                continue;
+            active = true;
+            
+            while (member.pending.size() < PIPELINE_DEPTH) {
+                int piece = choosePiece(member);
+                if (piece < 0)
+                    break;
+                request(member, piece);
+                if (member.failed)
+                    break;
+            }
+        }
+        
+        if (!active) {
+            fail(new IOException("Every peer in the swarm for " + path +
+                " has failed."));
+        }
+    }
+    
+    /**
+     * Chooses the next piece for the given peer to fetch: the first missing
+     * piece that nobody is fetching, or, in the endgame, the missing piece
+     * being fetched by the fewest other peers.
+     * @return the index of the chosen piece, or -1 if there is nothing for
+     *         the peer to do
+     */
+    private int choosePiece(Member member) {
+        int best = -1;
+        for (int i = completed.nextClearBit(0); i < pieceCount;
+            i = completed.nextClearBit(i + 1))
+        {
+            if (inFlight[i] == 0)
+                return i;
+            if (!member.pending.contains(i) &&
+                (best < 0 || inFlight[i] < inFlight[best]))
+            {
+                best = i;
+            }
+        }
+        return best;
+    }
+    
+    private void request(Member member, int piece) {
+        long offset = (long) piece * PieceDigest.PIECE_SIZE;
+        long length = Math.min((long) PieceDigest.PIECE_SIZE,
+            resource.getLength() - offset);
+        
+        if (++inFlight[piece] > 1)
+            shared.set(piece);
+        member.pending.add(piece);
+        try {
+            member.connection.requestRange(path, offset, length,
+                outputAccess.getChannel(), pieces,
+                new PieceRequest(member, piece));
+        } catch (IOException e) {
+            inFlight[piece]--;
+            member.pending.remove(piece);
+            memberFailed(member, e);
+        }
+    }
+    
+    private synchronized void pieceCompleted(Member member, int piece) {
+        inFlight[piece]--;
+        member.pending.remove(piece);
+        if (finished)
+            return;
+        
+        if (!completed.get(piece) && checkShared(piece)) {
+            completed.set(piece);
+            member.fetched++;
+            if (++unsaved >= SAVE_INTERVAL)
+                saveProgress();
+        }
+        
+        if (completed.cardinality() == pieceCount)
+            finish();
+        else
+            schedule();
+    }
+    
+    private synchronized void pieceFailed(Member member, int piece,
+        IOException error)
+    {
+        inFlight[piece]--;
+        member.pending.remove(piece);
+        if (finished)
+            return;
+        
+        memberFailed(member, error);
+        if (completed.get(piece) && !checkShared(piece)) {
+            // The failed copy overwrote one that had already completed.
+            completed.clear(piece);
+            saveProgress();
+        }
+        schedule();
+    }
+    
+    /**
+     * Reads back a piece that more than one peer has sent and checks it
+     * against its hash.
+     * @return true if the piece matches its hash, or if it was only sent
+     *         once or cannot be checked; false if it does not match
+     */
+    private boolean checkShared(int piece) {
+        if (pieces == null || !shared.get(piece))
+            return true;
+        
+        long pieceStart = (long) piece * PieceDigest.PIECE_SIZE;
+        long pieceEnd = Math.min(pieceStart + PieceDigest.PIECE_SIZE,
+            resource.getLength());
+        Verifier verifier = new Verifier(outputAccess.getChannel(),
+            pieceStart, pieceEnd, pieces, resource.getLength());
+        verifier.alreadyWritten(pieceStart, pieceEnd);
+        try {
+            return verifier.checkWritten() == null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Stops giving pieces to a peer that failed to send one. Its other
+     * outstanding pieces are still accepted if they arrive.
+     */
+    private void memberFailed(Member member, IOException error) {
+        if (member.failed)
+            return;
+        member.failed = true;
+        System.err.printf("warning: dropping %s from swarm for %s: %s%n",
+            member.connection.describeAddress(), path, error.getMessage());
+    }
+    
+    /**
+     * Records the completed pieces, once their data is safely on disk.
+     */
+    private void saveProgress() {
+        unsaved = 0;
+        try {
+            outputAccess.getChannel().force(false);
+            
+            int prefixPieces = completed.nextClearBit(0);
+            long prefix = Math.min((long) prefixPieces *
+                PieceDigest.PIECE_SIZE, resource.getLength());
+            progress.save(prefix, completed);
+        } catch (IOException e) {
+            System.err.printf("warning: could not record progress of %s: " +
+                "%s%n", path, e.getMessage());
+        }
+    }
+    
+    private void finish() {
+        finished = true;
+        try {
+            if (!checkWhole()) {
+                // There is no telling which piece is corrupt.
+                System.err.printf("error: %s does not match its digest%n",
+                    path);
+                completed.clear();
+                fail(new IOException("Downloaded file does not match its " +
+                    "digest."));
+                return;
+            }
+            outputAccess.close();
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        progress.delete();
+        
+        System.out.printf("done receiving file %s from %d peer(s)%n", path,
+            members.size());
+        for (Member member : members) {
+            System.out.printf("  %s sent %d of %d piece(s)%n",
+                member.connection.describeAddress(), member.fetched,
+                pieceCount);
+        }
+        task.set(outputFile);
+    }
+    
+    /**
+     * Checks the whole file against its digest if its pieces could not be
+     * checked as they arrived.
+     * @return true if the file matches its digest, or if its pieces were
+     *         checked; false if it does not match
+     */
+    private boolean checkWhole() throws IOException {
+        if (pieces != null)
+            return true;
+        
+        Verifier verifier = new Verifier(outputAccess.getChannel(), 0L,
+            resource.getLength(), resource.getDigest(),
+            resource.getRootDigest());
+        verifier.alreadyWritten(0L, resource.getLength());
+        return verifier.verify();
+    }
+    
+    private void fail(IOException error) {
+        if (outputAccess != null) {
+            saveProgress();
+            try {
+                outputAccess.close();
+            } catch (IOException e) {
+                // the download has already failed
+            }
+        }
+        finished = true;
+        task.setError(error);
+    }
+    
+    /**
+     * A peer taking part in the swarm.
+     */
+    private static class Member {
+        final Connection connection;
+        final Set<Integer> pending;
+        int fetched;
+        boolean failed;
+        
+        Member(Connection connection) {
+            this.connection = connection;
+            pending = new HashSet<Integer>();
+            fetched = 0;
+            failed = false;
+        }
+    }
+    
+    /**
+     * Follows the request for one piece from one peer.
+     */
+    private class PieceRequest implements RangeListener {
+        private Member member;
+        private int piece;
+        
+        PieceRequest(Member member, int piece) {
+            this.member = member;
+            this.piece = piece;
+        }
+        
+        public boolean rangeStarted(Resource sent) {
+            return resource.equals(sent);
+        }
+        
+        public void rangeCompleted() {
+            pieceCompleted(member, piece);
+        }
+        
+        public void rangeFailed(IOException error) {
+            pieceFailed(member, piece, error);
+        }
+    }
+}
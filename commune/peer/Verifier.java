@@ -0,0 +1,491 @@
+package commune.peer;
+
+import commune.source.PieceDigest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Checks a download against its digest while the download is written.
+ *
+ * The parts of the file that have been written are kept in a set of
+ * ranges, so a chunk that arrives twice is only counted once. Data that
+ * arrives in order is hashed as soon as it has been written, while it is
+ * still in memory, so the file never needs a second pass once it is
+ * complete. Data that arrives ahead of the data before it is only hashed
+ * once the gap has been filled, and is read back from the file to do so.
+ *
+ * If the hashes of the file's pieces (see {@link PieceDigest}) are known,
+ * each piece is checked on its own as soon as all of it has been written,
+ * and a piece that does not match its hash is reported, so that it alone
+ * can be fetched again. Otherwise, the file is hashed the same way as its
+ * digest was: as the root hash of its pieces if the other peer sent one,
+ * or as the SHA-1 hash of the whole file if not. If there is no digest at
+ * all, the ranges are still tracked, but nothing is hashed.
+ */
+class Verifier {
+    /** The size of the buffer used to read data back from the file. */
+    private static final int READ_BACK_SIZE = 256 * 1024;
+    
+    private FileChannel file;
+    private long start;
+    private long end;
+    private TreeMap<Long, Long> ranges;
+    private long covered;
+    private MessageDigest hasher;
+    
+    private byte[] expected;
+    private boolean rooted;
+    private List<byte[]> pieceHashes;
+    private long hashed;
+    
+    private PieceDigest pieceList;
+    private long fileLength;
+    private BitSet checked;
+    private int current;
+    private long currentHashed;
+    
+    private long hashedBytes;
+    private long hashTime;
+    private long readBack;
+    
+    /**
+     * Creates a new verifier for the part of a file between
+     * <code>start</code> and <code>end</code>, which checks the whole file
+     * against its digest once it is complete.
+     * @param file the file being written, from which data is read back
+     * @param digest the SHA-1 hash of the whole file, or <code>null</code>
+     * @param rootDigest the root hash of the file's pieces, or
+     *        <code>null</code>
+     */
+    public Verifier(FileChannel file, long start, long end, byte[] digest,
+        byte[] rootDigest)
+    {
+        this(file, start, end);
+        
+        // Only a download of the whole file can be checked.
+        if (start != 0L) {
+            expected = null;
+        } else if (rootDigest != null) {
+            expected = rootDigest;
+            rooted = true;
+        } else {
+            expected = digest;
+        }
+    }
+    
+    /**
+     * Creates a new verifier for the part of a file between
+     * <code>start</code> and <code>end</code>, which checks each of the
+     * file's pieces against its hash. Pieces that do not lie wholly between
+     * <code>start</code> and <code>end</code> are not checked.
+     * @param file the file being written, from which data is read back
+     * @param pieceList the hashes of the file's pieces
+     * @param fileLength the length of the whole file
+     */
+    public Verifier(FileChannel file, long start, long end,
+        PieceDigest pieceList, long fileLength)
+    {
+        this(file, start, end);
+        this.pieceList = pieceList;
+        this.fileLength = fileLength;
+        checked = new BitSet(pieceList.getPieceCount());
+    }
+    
+    private Verifier(FileChannel file, long start, long end) {
+        this.file = file;
+        this.start = start;
+        this.end = end;
+        ranges = new TreeMap<Long, Long>();
+        covered = 0L;
+        hasher = newDigest();
+        
+        expected = null;
+        rooted = false;
+        pieceHashes = new ArrayList<byte[]>();
+        hashed = start;
+        
+        pieceList = null;
+        fileLength = 0L;
+        checked = null;
+        current = -1;
+        currentHashed = 0L;
+        
+        hashedBytes = 0L;
+        hashTime = 0L;
+        readBack = 0L;
+    }
+    
+    /**
+     * Records that the given part of the file was written before the
+     * verifier was created (e.g., by an earlier, interrupted download). It
+     * is read back and hashed when the data before it has been hashed, or,
+     * if the piece hashes are known, by {@link checkWritten}.
+     */
+    public synchronized void alreadyWritten(long from, long to) {
+        addRange(from, to);
+    }
+    
+    /**
+     * Records that the given data has been written to the file, and hashes
+     * as much of the file as has now arrived in order.
+     * @param data the data that was written; its position is left
+     *        unchanged
+     * @param position the offset in the file at which it was written
+     * @return the pieces that were completed by the data but do not match
+     *         their hashes, or <code>null</code> if there are none; these
+     *         pieces are no longer counted as written
+     */
+    public synchronized BitSet received(ByteBuffer data, long position)
+        throws IOException
+    {
+        long stop = position + data.remaining();
+        addRange(position, stop);
+        
+        if (pieceList != null)
+            return checkPieces(data, position);
+        if (expected == null)
+            return null;
+        
+        if (position <= hashed && stop > hashed) {
+            ByteBuffer fresh = data.duplicate();
+            fresh.position(fresh.position() + (int) (hashed - position));
+            hash(fresh);
+        }
+        catchUp();
+        return null;
+    }
+    
+    /**
+     * Checks every piece that has been written but not yet checked (e.g.,
+     * because it was written by an earlier download), reading it back from
+     * the file. Does nothing unless the piece hashes are known.
+     * @return the pieces that do not match their hashes, or
+     *         <code>null</code> if there are none; these pieces are no
+     *         longer counted as written
+     */
+    public synchronized BitSet checkWritten() throws IOException {
+        if (pieceList == null)
+            return null;
+        
+        BitSet corrupt = null;
+        for (int piece = 0; piece < pieceList.getPieceCount(); piece++) {
+            if (!checkPiece(piece)) {
+                if (corrupt == null)
+                    corrupt = new BitSet();
+                corrupt.set(piece);
+            }
+        }
+        return corrupt;
+    }
+    
+    /**
+     * Records that a piece that was reported as corrupt has since been
+     * written again, and checked, by another request.
+     */
+    public synchronized void repaired(int piece) {
+        addRange(getPieceStart(piece), getPieceEnd(piece));
+        checked.set(piece);
+    }
+    
+    /**
+     * Returns the end of the part of the file, from its start, that has
+     * been written without gaps.
+     * @return end of the part of the file written without gaps
+     */
+    public synchronized long getContiguous() {
+        Long first = ranges.get(start);
+        return (first != null) ? first : start;
+    }
+    
+    /**
+     * Returns true if every byte between the start and end has been
+     * written; false if otherwise.
+     */
+    public synchronized boolean isComplete() {
+        return covered >= end - start;
+    }
+    
+    /**
+     * Finishes hashing the file and compares the result to its digest.
+     * Must only be called once the file is complete, and, if the piece
+     * hashes are known, after {@link checkWritten} has found no corrupt
+     * pieces.
+     * @return true if the file matches its digest, or if it has none;
+     *         false if it does not
+     */
+    public synchronized boolean verify() throws IOException {
+        if (pieceList != null) {
+            for (int piece = 0; piece < pieceList.getPieceCount(); piece++) {
+                if (isCheckable(piece) && !checked.get(piece))
+                    return false;
+            }
+            return true;
+        } else if (expected == null) {
+            return true;
+        }
+        
+        catchUp();
+        if (hashed < end)
+            return false;
+        
+        byte[] actual;
+        if (rooted) {
+            if (hashed > pieceHashes.size() * (long) PieceDigest.PIECE_SIZE)
+                pieceHashes.add(hasher.digest());
+            actual = PieceDigest.computeRoot(
+                pieceHashes.toArray(new byte[pieceHashes.size()][]));
+        } else {
+            actual = hasher.digest();
+        }
+        return Arrays.equals(expected, actual);
+    }
+    
+    /**
+     * Describes how much work checking the file took.
+     */
+    public synchronized String describeCost() {
+        if (pieceList == null && expected == null)
+            return "no digest to check";
+        return String.format("hashed %.1f MB in %d ms, %.1f MB of it read " +
+            "back from disk", hashedBytes / 1048576.0, hashTime / 1000000L,
+            readBack / 1048576.0);
+    }
+    
+    /**
+     * Adds a range to the set, merging it with any ranges it touches.
+     */
+    private void addRange(long from, long to) {
+        from = Math.max(from, start);
+        to = Math.min(to, end);
+        if (from >= to)
+            return;
+        
+        Map.Entry<Long, Long> before = ranges.floorEntry(from);
+        if (before != null && before.getValue() >= from) {
+            if (before.getValue() >= to)
+                return;
+            from = before.getKey();
+        }
+        
+        Map.Entry<Long, Long> next;
+        while ((next = ranges.ceilingEntry(from)) != null &&
+            next.getKey() <= to)
+        {
+            to = Math.max(to, next.getValue());
+            covered -= next.getValue() - next.getKey();
+            ranges.remove(next.getKey());
+        }
+        
+        ranges.put(from, to);
+        covered += to - from;
+    }
+    
+    /**
+     * Removes a range that lies wholly within one range of the set.
+     */
+    private void removeRange(long from, long to) {
+        Map.Entry<Long, Long> range = ranges.floorEntry(from);
+        long rangeStart = range.getKey();
+        long rangeEnd = range.getValue();
+        
+        ranges.remove(rangeStart);
+        if (rangeStart < from)
+            ranges.put(rangeStart, from);
+        if (rangeEnd > to)
+            ranges.put(to, rangeEnd);
+        covered -= to - from;
+    }
+    
+    /**
+     * Returns true if the given range has been written; false if otherwise.
+     */
+    private boolean isWritten(long from, long to) {
+        Map.Entry<Long, Long> range = ranges.floorEntry(from);
+        return range != null && range.getValue() >= to;
+    }
+    
+    private long getPieceStart(int piece) {
+        return (long) piece * PieceDigest.PIECE_SIZE;
+    }
+    
+    private long getPieceEnd(int piece) {
+        return Math.min(getPieceStart(piece) + PieceDigest.PIECE_SIZE,
+            fileLength);
+    }
+    
+    /**
+     * Returns true if the given piece lies wholly within the part of the
+     * file being verified; false if otherwise.
+     */
+    private boolean isCheckable(int piece) {
+        return getPieceStart(piece) >= start && getPieceEnd(piece) <= end;
+    }
+    
+    /**
+     * Hashes the given data into the hash of the piece it belongs to, if it
+     * continues the piece being hashed, and checks any pieces that it
+     * completes.
+     */
+    private BitSet checkPieces(ByteBuffer data, long position)
+        throws IOException
+    {
+        BitSet corrupt = null;
+        ByteBuffer rest = data.duplicate();
+        long offset = position;
+        
+        while (rest.hasRemaining()) {
+            int piece = (int) (offset / PieceDigest.PIECE_SIZE);
+            long pieceStart = getPieceStart(piece);
+            long pieceEnd = getPieceEnd(piece);
+            if (pieceEnd <= offset)
+                break;
+            
+            int count = (int) Math.min(rest.remaining(), pieceEnd - offset);
+            ByteBuffer part = rest.duplicate();
+            part.limit(part.position() + count);
+            rest.position(rest.position() + count);
+            
+            if (offset == pieceStart) {
+                current = piece;
+                currentHashed = pieceStart;
+                hasher.reset();
+            }
+            if (piece == current && offset == currentHashed) {
+                update(hasher, part);
+                currentHashed += count;
+            }
+            offset += count;
+            
+            if (!checkPiece(piece)) {
+                if (corrupt == null)
+                    corrupt = new BitSet();
+                corrupt.set(piece);
+            }
+        }
+        return corrupt;
+    }
+    
+    /**
+     * Checks the given piece against its hash, if all of it has been
+     * written and it has not been checked already. If the piece was not
+     * hashed as it arrived, it is read back from the file. A piece that
+     * does not match its hash is removed from the set of ranges.
+     * @return false if the piece does not match its hash; true if it does,
+     *         or if it cannot be checked yet
+     */
+    private boolean checkPiece(int piece) throws IOException {
+        long pieceStart = getPieceStart(piece);
+        long pieceEnd = getPieceEnd(piece);
+        if (checked.get(piece) || !isCheckable(piece) ||
+            !isWritten(pieceStart, pieceEnd))
+        {
+            return true;
+        }
+        
+        byte[] actual;
+        if (piece == current && currentHashed == pieceEnd) {
+            actual = hasher.digest();
+        } else {
+            MessageDigest pieceHasher = newDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BACK_SIZE);
+            for (long at = pieceStart; at < pieceEnd; at += READ_BACK_SIZE)
+                update(pieceHasher, readAt(at, pieceEnd, buffer));
+            actual = pieceHasher.digest();
+        }
+        if (piece == current)
+            current = -1;
+        
+        if (Arrays.equals(actual, pieceList.getPiece(piece))) {
+            checked.set(piece);
+            return true;
+        }
+        removeRange(pieceStart, pieceEnd);
+        return false;
+    }
+    
+    /**
+     * Reads back and hashes any data that was written ahead of the hashed
+     * part of the file and is now joined to it.
+     */
+    private void catchUp() throws IOException {
+        Map.Entry<Long, Long> range = ranges.floorEntry(hashed);
+        if (range == null || range.getValue() <= hashed)
+            return;
+        
+        long stop = range.getValue();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BACK_SIZE);
+        while (hashed < stop)
+            hash(readAt(hashed, stop, buffer));
+    }
+    
+    /**
+     * Reads as much of the file from the given position, up to
+     * <code>stop</code>, as fits in the given buffer.
+     * @return the buffer, flipped
+     */
+    private ByteBuffer readAt(long position, long stop, ByteBuffer buffer)
+        throws IOException
+    {
+        buffer.clear();
+        buffer.limit((int) Math.min(stop - position,
+            (long) buffer.capacity()));
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("File ended before it was hashed.");
+        }
+        buffer.flip();
+        readBack += buffer.remaining();
+        return buffer;
+    }
+    
+    /**
+     * Hashes the given data, which continues the hashed part of the file.
+     */
+    private void hash(ByteBuffer data) {
+        if (!rooted) {
+            hashed += data.remaining();
+            update(hasher, data);
+            return;
+        }
+        
+        while (data.hasRemaining()) {
+            int room = (int) (PieceDigest.PIECE_SIZE -
+                hashed % PieceDigest.PIECE_SIZE);
+            int count = Math.min(room, data.remaining());
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + count);
+            update(hasher, part);
+            data.position(data.position() + count);
+            
+            hashed += count;
+            if (count == room)
+                pieceHashes.add(hasher.digest());
+        }
+    }
+    
+    private void update(MessageDigest digest, ByteBuffer data) {
+        long started = System.nanoTime();
+        hashedBytes += data.remaining();
+        digest.update(data);
+        hashTime += System.nanoTime() - started;
+    }
+    
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available.", e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package commune.peer;
+
+import java.util.concurrent.*;
+
+/**
+ * A fixed pool of threads on which receivers that may block are run.
+ *
+ * A broker hands a connection at most one blocking message at a time, so
+ * the pool's queue never holds more of them than there are connections.
+ * Responses also look up their files' digests here, since hashing a file
+ * that is not in the digest cache can take a long time.
+ */
+public class WorkerPool {
+    private static final WorkerPool DEFAULT_POOL = new WorkerPool(
+        Math.max(2, Runtime.getRuntime().availableProcessors()));
+    
+    private ExecutorService workService;
+    
+    /**
+     * Creates a new worker pool.
+     * @param threads the number of threads in the pool
+     */
+    public WorkerPool(int threads) {
+        workService = Executors.newFixedThreadPool(threads,
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+    
+    /**
+     * Returns the worker pool shared by the whole application.
+     * @return worker pool shared by the whole application
+     */
+    public static WorkerPool getDefault() {
+        return DEFAULT_POOL;
+    }
+    
+    /**
+     * Runs the given task on one of the pool's threads.
+     */
+    public void execute(Runnable task) {
+        workService.execute(task);
+    }
+}
@@ -54,24 +54,32 @@ public class HelloMessage extends Message {
         return acknowledgement;
     }
     
-    public ByteBuffer getBytes() {
-        return formatMessage(isAcknowledgement(), getPeerID(),
-            getListeningPort(), getUserAgent());
+    public int encodedLength() {
+        return HEADER_LENGTH + 1 + 8 + 4 + stringLength(getUserAgent());
     }
     
-    static {
-        Message.addParser(CODE, new MessageParser() {
-            public Message parse(ByteBuffer buf, int length)
-                throws InvalidMessageException
-            {
-                boolean acknowledgement = (buf.get() != (byte) 0);
-                long peerID = buf.getLong();
-                int listeningPort = buf.getInt();
-                String agent = readString(buf);
-                
-                return new HelloMessage(agent, peerID, listeningPort,
-                    acknowledgement);
-            }
-        });
+    public void encodeTo(ByteBuffer destination) {
+        writeHeader(destination, encodedLength());
+        destination.put((byte) (isAcknowledgement() ? 1 : 0));
+        destination.putLong(getPeerID());
+        destination.putInt(getListeningPort());
+        writeString(destination, getUserAgent());
     }
+    
+    /**
+     * Parses the body of a hello message.
+     */
+    static final MessageParser PARSER = new MessageParser() {
+        public Message parse(ByteBuffer buf, int length)
+            throws InvalidMessageException
+        {
+            boolean acknowledgement = (buf.get() != (byte) 0);
+            long peerID = buf.getLong();
+            int listeningPort = buf.getInt();
+            String agent = readString(buf);
+            
+            return new HelloMessage(agent, peerID, listeningPort,
+                acknowledgement);
+        }
+    };
 }
@@ -2,12 +2,10 @@ package commune.protocol;
 
 import java.util.Collections;
 import java.util.List;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.HashMap;
 import java.nio.ByteBuffer;
 import java.nio.BufferUnderflowException;
 import java.io.UnsupportedEncodingException;
+import commune.net.BufferPool;
 
 /**
  * Base type for Commune messages.
@@ -16,13 +14,8 @@ import java.io.UnsupportedEncodingException;
 public abstract class Message {
     public static final int HEADER_LENGTH = 8;
     
-    private static Map<Short, MessageParser> types;
     private short type;
     
-    static {
-        types = new HashMap<Short, MessageParser>();
-    }
-    
     /**
      * Initialize the message object.
      */
@@ -61,7 +54,7 @@ public abstract class Message {
         short typeCode = buf.getShort();
         short checksum = buf.getShort();
         
-        MessageParser parser = types.get(typeCode);
+        MessageParser parser = MessageTypes.getParser(typeCode);
         if (parser == null) {
             throw new InvalidMessageException(String.format("Unknown " +
                 "message type code %d.", typeCode));
@@ -70,71 +63,49 @@ public abstract class Message {
         return parser.parse(buf, length);
     }
     
-    public abstract ByteBuffer getBytes();
-    
-    protected void writeHeader(ByteBuffer destination, int length) {
-        destination.putInt(length);
-        destination.putShort(getType());
-        destination.putShort((short) 0); // reserved space
+    /**
+     * Returns the message in its wire format, in a newly-allocated buffer.
+     */
+    public ByteBuffer getBytes() {
+        return getBytes(null);
     }
     
-    protected ByteBuffer formatMessage(Object... parts) {
-        int length = HEADER_LENGTH;
-        LinkedList<Object> strings = null;
-        
-        // Calculate the length of the packet.
-        for (Object part : parts) {
-            if (part instanceof String) {
-                byte[] bytes = encodeString((String) part);
-                length += (2 + bytes.length);
-                
-                if (strings == null)
-                    strings = new LinkedList<Object>();
-                strings.add((Object) bytes);
-            } else if (part instanceof Long) {
-                length += 8;
-            } else if (part instanceof Integer) {
-                length += 4;
-            } else if (part instanceof Short) {
-                length += 2;
-            } else if (part instanceof Byte || part instanceof Boolean) {
-                length += 1;
-            } else if (part instanceof ByteBuffer) {
-                length += ((ByteBuffer) part).limit();
-            } else {
-                throw new IllegalArgumentException("Message part " + part +
-                    " cannot be formatted.");
-            }
-        }
-        
-        // Create and fill the packet's buffer.
-        ByteBuffer buf = ByteBuffer.allocate(length);
-        writeHeader(buf, length);
-        
-        for (Object part : parts) {
-            if (part instanceof String) {
-                writeString(buf, (byte[]) strings.removeFirst());
-            } else if (part instanceof Long) {
-                buf.putLong((Long) part);
-            } else if (part instanceof Integer) {
-                buf.putInt((Integer) part);
-            } else if (part instanceof Short) {
-                buf.putShort((Short) part);
-            } else if (part instanceof Byte) {
-                buf.put((Byte) part);
-            } else if (part instanceof Boolean) {
-                buf.put((byte) (((Boolean) part).booleanValue() ? 1 : 0));
-            } else if (part instanceof ByteBuffer) {
-                buf.put((ByteBuffer) part);
-            }
-        }
+    /**
+     * Returns the message in its wire format, in a buffer acquired from the
+     * given pool. The caller must release the buffer to the pool once it has
+     * been written.
+     * @param pool the pool to take the buffer from; if <code>null</code>, a
+     *        new heap buffer is allocated
+     */
+    public ByteBuffer getBytes(BufferPool pool) {
+        int length = encodedLength();
+        ByteBuffer buf = (pool != null)
+            ? pool.acquire(length)
+            : ByteBuffer.allocate(length);
         
+        encodeTo(buf);
         buf.flip();
         return buf;
     }
     
-    static void addParser(short typeCode, MessageParser parser) {
-        types.put(typeCode, parser);
+    /**
+     * Returns the length of the message in its wire format, including the
+     * header.
+     * @return length of the message in its wire format
+     */
+    public abstract int encodedLength();
+    
+    /**
+     * Writes the message in its wire format, including the header, into the
+     * given buffer at its current position. The buffer must have at least
+     * {@link encodedLength} bytes remaining.
+     */
+    public abstract void encodeTo(ByteBuffer destination);
+    
+    protected void writeHeader(ByteBuffer destination, int length) {
+        destination.putInt(length);
+        destination.putShort(getType());
+        destination.putShort((short) 0); // reserved space
     }
     
     static String readString(ByteBuffer source)
@@ -157,26 +128,80 @@ public abstract class Message {
         }
     }
     
-    static byte[] encodeString(String string) {
-        try {
-            byte[] bytes = string.getBytes("UTF-8");
-            if (bytes.length > Short.MAX_VALUE)
-                throw new RuntimeException("String is too long.");
-            return bytes;
-        } catch (UnsupportedEncodingException e) {
-            // All JVM implementations must support UTF-8; this code should
-            // be unreachable.
-            throw new RuntimeException(e);
-        }
+    /**
+     * Returns the number of bytes that the given string takes up in a
+     * message, including its length prefix.
+     */
+    static int stringLength(String string) {
+        int length = utf8Length(string);
+        if (length > Short.MAX_VALUE)
+            throw new RuntimeException("String is too long.");
+        return 2 + length;
     }
     
+    /**
+     * Writes the given string, prefixed by its length, in UTF-8. The string
+     * is encoded straight into the destination, without an intermediate
+     * byte array.
+     * @return the number of bytes written, not counting the length prefix
+     */
     static int writeString(ByteBuffer destination, String string) {
-        return writeString(destination, encodeString(string));
+        int length = stringLength(string) - 2;
+        destination.putShort((short) length);
+        
+        int count = string.length();
+        for (int i = 0; i < count; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                destination.put((byte) c);
+            } else if (c < 0x800) {
+                destination.put((byte) (0xC0 | (c >> 6)));
+                destination.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < count &&
+                    Character.isLowSurrogate(string.charAt(i + 1)))
+                {
+                    int cp = Character.toCodePoint(c, string.charAt(++i));
+                    destination.put((byte) (0xF0 | (cp >> 18)));
+                    destination.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    destination.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    destination.put((byte) (0x80 | (cp & 0x3F)));
+                } else {
+                    // An unpaired surrogate can't be encoded.
+                    destination.put((byte) '?');
+                }
+            } else {
+                destination.put((byte) (0xE0 | (c >> 12)));
+                destination.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                destination.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        
+        return length;
     }
     
-    static int writeString(ByteBuffer destination, byte[] bytes) {
-        destination.putShort((short) bytes.length);
-        destination.put(bytes);
-        return bytes.length;
+    private static int utf8Length(String string) {
+        int count = string.length();
+        int length = count;
+        
+        for (int i = 0; i < count; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                continue;
+            } else if (c < 0x800) {
+                length += 1;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < count &&
+                    Character.isLowSurrogate(string.charAt(i + 1)))
+                {
+                    length += 2; // two chars become four bytes
+                    i++;
+                }
+            } else {
+                length += 2;
+            }
+        }
+        
+        return length;
     }
 }
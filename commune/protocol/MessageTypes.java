@@ -0,0 +1,63 @@
+package commune.protocol;
+
+/**
+ * The table of known message types.
+ *
+ * Type codes are small, so parsers are kept in an array indexed directly by
+ * type code. The table is filled in when this class is loaded, rather than
+ * as a side effect of loading each message class.
+ */
+public final class MessageTypes {
+    /**
+     * One more than the largest type code that can be registered.
+     */
+    public static final int TABLE_SIZE = 0x40;
+    
+    private static final MessageParser[] parsers =
+        new MessageParser[TABLE_SIZE];
+    
+    static {
+        register(HelloMessage.CODE, HelloMessage.PARSER);
+        register(RequestMessage.CODE, RequestMessage.PARSER);
+        register(ResponseMessage.CODE, ResponseMessage.PARSER);
+        register(PayloadMessage.CODE, PayloadMessage.PARSER);
+        register(PieceListMessage.CODE, PieceListMessage.PARSER);
+        register(PeerExchangeMessage.CODE, PeerExchangeMessage.PARSER);
+    }
+    
+    private MessageTypes() {
+        // not instantiable
+    }
+    
+    /**
+     * Returns true if the given type code is in the range that a dispatch
+     * table indexed by type code must cover; false if otherwise.
+     */
+    public static boolean inRange(short code) {
+        return code >= 0 && code < TABLE_SIZE;
+    }
+    
+    /**
+     * Returns true if messages with the given type code can be parsed;
+     * false if otherwise.
+     */
+    public static boolean isKnown(short code) {
+        return inRange(code) && parsers[code] != null;
+    }
+    
+    /**
+     * Returns the parser for the given type code, or <code>null</code> if
+     * the type is not known.
+     */
+    static MessageParser getParser(short code) {
+        return (inRange(code)) ? parsers[code] : null;
+    }
+    
+    private static void register(short code, MessageParser parser) {
+        if (!inRange(code) || parsers[code] != null) {
+            throw new IllegalStateException("Cannot register message " +
+                "type code " + code + ".");
+        }
+        parsers[code] = parser;
+    }
+}
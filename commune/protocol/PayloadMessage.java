@@ -1,6 +1,11 @@
 package commune.protocol;
 
+import commune.net.BufferPool;
+import java.io.EOFException;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 public class PayloadMessage extends Message {
     public static final short CODE = 0x12;
@@ -9,12 +14,57 @@ public class PayloadMessage extends Message {
     private int requestID;
     private long offset;
     private byte[] body;
+    private ByteBuffer bodyBuffer;
+    private FileChannel source;
+    private int bodyLength;
     
     public PayloadMessage(int requestID, long offset, byte[] body) {
         super(CODE);
         this.requestID = requestID;
         this.offset = offset;
         this.body = body;
+        this.bodyBuffer = null;
+        this.source = null;
+        this.bodyLength = body.length;
+    }
+    
+    /**
+     * Creates a payload message whose body is the remaining contents of the
+     * given buffer. The buffer is not copied; whoever sends the message
+     * takes ownership of it.
+     * @param requestID the ID of the request being answered
+     * @param offset the offset of the body within the file
+     * @param body the buffer holding the body
+     */
+    public PayloadMessage(int requestID, long offset, ByteBuffer body) {
+        super(CODE);
+        this.requestID = requestID;
+        this.offset = offset;
+        this.body = null;
+        this.bodyBuffer = body;
+        this.source = null;
+        this.bodyLength = body.remaining();
+    }
+    
+    /**
+     * Creates a payload message whose body is the given region of a file.
+     * The body is not read into memory; it can be sent straight from the
+     * file with {@link transferBody}.
+     * @param requestID the ID of the request being answered
+     * @param offset the offset of the body within the file
+     * @param length the length of the body
+     * @param source the file to read the body from
+     */
+    public PayloadMessage(int requestID, long offset, int length,
+        FileChannel source)
+    {
+        super(CODE);
+        this.requestID = requestID;
+        this.offset = offset;
+        this.body = null;
+        this.bodyBuffer = null;
+        this.source = source;
+        this.bodyLength = length;
     }
     
     /**
@@ -34,36 +84,146 @@ public class PayloadMessage extends Message {
     }
     
     /**
-     * Returns the body of the payload.
+     * Returns the body of the payload. If the body is backed by a file, it
+     * is read from the file.
      * @return body of the payload
      */
     public byte[] getBody() {
+        if (bodyBuffer != null) {
+            byte[] copy = new byte[bodyLength];
+            bodyBuffer.duplicate().get(copy);
+            return copy;
+        } else if (body == null) {
+            ByteBuffer buffer = ByteBuffer.allocate(bodyLength);
+            try {
+                while (buffer.hasRemaining()) {
+                    int read = source.read(buffer,
+                        offset + buffer.position());
+                    if (read < 0)
+                        break;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return buffer.array();
+        }
         return body;
     }
     
-    public ByteBuffer getBytes() {
-        return formatMessage(getRequestID(), getOffset(),
-            ByteBuffer.wrap(body));
+    /**
+     * Returns the length of the payload's body.
+     * @return length of the payload's body
+     */
+    public int getBodyLength() {
+        return bodyLength;
+    }
+    
+    /**
+     * Returns true if the payload's body is backed by a file; false if it
+     * is held in memory.
+     * @return true if the payload's body is backed by a file; false if
+     *         otherwise
+     */
+    public boolean isFileBacked() {
+        return source != null;
+    }
+    
+    /**
+     * Returns the buffer holding the payload's body, or <code>null</code> if
+     * the body is not held in a buffer.
+     * @return buffer holding the payload's body
+     */
+    public ByteBuffer getBodyBuffer() {
+        return bodyBuffer;
+    }
+    
+    /**
+     * Returns the message header and payload fields, without the body.
+     * @param pool the pool to take the buffer from; if <code>null</code>, a
+     *        new heap buffer is allocated
+     */
+    public ByteBuffer getHeaderBytes(BufferPool pool) {
+        ByteBuffer buf = (pool != null)
+            ? pool.acquire(HEADER_LENGTH + OVERHEAD)
+            : ByteBuffer.allocate(HEADER_LENGTH + OVERHEAD);
+        writeHeader(buf, HEADER_LENGTH + OVERHEAD + bodyLength);
+        buf.putInt(getRequestID());
+        buf.putLong(getOffset());
+        buf.flip();
+        return buf;
+    }
+    
+    /**
+     * Transfers the part of a file-backed body that has not been sent yet
+     * directly from the file to the target channel, without copying it
+     * through the Java heap.
+     * @param target the channel to write to
+     * @param sent the number of body bytes already sent
+     * @return the number of bytes transferred by this call
+     */
+    public long transferBody(WritableByteChannel target, long sent)
+        throws IOException
+    {
+        long count = source.transferTo(offset + sent, bodyLength - sent,
+            target);
+        if (count == 0L && source.size() <= offset + sent)
+            throw new EOFException("File ended before the payload did.");
+        return count;
+    }
+    
+    public int encodedLength() {
+        return HEADER_LENGTH + OVERHEAD + bodyLength;
     }
     
-    static {
-        Message.addParser(CODE, new MessageParser() {
-            public Message parse(ByteBuffer buf, int length)
-                throws InvalidMessageException
-            {
-                int transferID = buf.getInt();
-                long offset = buf.getLong();
-                
-                int dataLength = length - HEADER_LENGTH -
-                    PayloadMessage.OVERHEAD;
-                byte[] body = new byte[dataLength];
-                buf.get(body);
-                
-                return new PayloadMessage(transferID, offset, body);
+    public void encodeTo(ByteBuffer destination) {
+        writeHeader(destination, encodedLength());
+        destination.putInt(getRequestID());
+        destination.putLong(getOffset());
+        
+        if (body != null) {
+            destination.put(body);
+            return;
+        } else if (bodyBuffer != null) {
+            destination.put(bodyBuffer.duplicate());
+            return;
+        }
+        
+        // Read a file-backed body straight into the destination.
+        ByteBuffer region = destination.duplicate();
+        region.limit(region.position() + bodyLength);
+        try {
+            while (region.hasRemaining()) {
+                int read = source.read(region, offset + region.position() -
+                    destination.position());
+                if (read < 0)
+                    throw new EOFException("File ended before the " +
+                        "payload did.");
             }
-        });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        destination.position(region.position());
     }
     
+    /**
+     * Parses the body of a payload message.
+     */
+    static final MessageParser PARSER = new MessageParser() {
+        public Message parse(ByteBuffer buf, int length)
+            throws InvalidMessageException
+        {
+            int transferID = buf.getInt();
+            long offset = buf.getLong();
+            
+            int dataLength = length - HEADER_LENGTH -
+                PayloadMessage.OVERHEAD;
+            byte[] body = new byte[dataLength];
+            buf.get(body);
+            
+            return new PayloadMessage(transferID, offset, body);
+        }
+    };
+    
     public String toString() {
         StringBuilder builder = new StringBuilder();
         
@@ -1,9 +1,7 @@
 package commune.protocol;
 
 import commune.peer.Peer;
-import java.net.*;
 import java.nio.ByteBuffer;
-import java.nio.BufferOverflowException;
 import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
@@ -11,6 +9,7 @@ import java.util.ArrayList;
 
 public class PeerExchangeMessage extends Message {
     public static final short CODE = 0x20;
+    private static final int PEER_SPACE = 8192;
     
     private List<Peer> peers;
     private boolean response;
@@ -47,61 +46,82 @@ public class PeerExchangeMessage extends Message {
         return response;
     }
     
-    public ByteBuffer getBytes() {
-        ByteBuffer peerBuffer = ByteBuffer.allocate(8192);
+    public int encodedLength() {
+        int length = HEADER_LENGTH + 1 + 4;
+        int peersLength = 0;
+        
+        for (Peer peer : getPeers()) {
+            int peerLength = getPeerLength(peer);
+            if (peersLength + peerLength > PEER_SPACE)
+                break;
+            peersLength += peerLength;
+        }
+        
+        return length + peersLength;
+    }
+    
+    public void encodeTo(ByteBuffer destination) {
+        writeHeader(destination, encodedLength());
+        destination.put((byte) (isResponse() ? 1 : 0));
+        
+        // Fill in the count once it is known.
+        int countPosition = destination.position();
+        destination.putInt(0);
         
         long now = System.currentTimeMillis();
         int count = 0;
-        int lastPos = 0;
+        int peersLength = 0;
         for (Peer peer : getPeers()) {
-            try {
-                InetSocketAddress address = peer.getAddress();
-                String host = address.getAddress().getHostName();
-                peerBuffer.putLong(peer.getID());
-                writeString(peerBuffer, host);
-                peerBuffer.putInt(address.getPort());
-                writeString(peerBuffer, peer.getUserAgent());
-                peerBuffer.putLong(now - peer.getLastContact());
-                lastPos = peerBuffer.position();
-                count++;
-            } catch (UnknownHostException e) {
-                // ignore this peer
-            } catch (BufferOverflowException e) {
-                // set the buffer's limit to the end of the last fully-written
-                // peer
-                peerBuffer.limit(lastPos);
+            int peerLength = getPeerLength(peer);
+            if (peersLength + peerLength > PEER_SPACE)
                 break;
-            }
+            
+            // Peers are sent as they are known; nothing is looked up.
+            destination.putLong(peer.getID());
+            writeString(destination, peer.getHost());
+            destination.putInt(peer.getPort());
+            writeString(destination, peer.getUserAgent());
+            destination.putLong(now - peer.getLastContact());
+            peersLength += peerLength;
+            count++;
         }
         
-        peerBuffer.flip();
-        return formatMessage(isResponse(), count, peerBuffer);
+        destination.putInt(countPosition, count);
     }
     
-    static {
-        Message.addParser(CODE, new MessageParser() {
-            public Message parse(ByteBuffer buf, int length)
-                throws InvalidMessageException
-            {
-                long now = System.currentTimeMillis();
-                
-                boolean response = (buf.get() != (byte) 0);
-                int count = buf.getInt();
-                List<Peer> peers = new ArrayList<Peer>(count);
-                
-                for (int i = 0; i < count; i++) {
-                    long id = buf.getLong();
-                    String hostname = readString(buf);
-                    int port = buf.getInt();
-                    String userAgent = readString(buf);
-                    long age = buf.getLong();
-                    
-                    peers.add(new Peer(id, hostname, port, userAgent,
-                        now - age));
-                }
+    /**
+     * Returns the number of bytes that the given peer takes up in a message.
+     */
+    private static int getPeerLength(Peer peer) {
+        return 8 + stringLength(peer.getHost()) + 4 +
+            stringLength(peer.getUserAgent()) + 8;
+    }
+    
+    /**
+     * Parses the body of a peer exchange message.
+     */
+    static final MessageParser PARSER = new MessageParser() {
+        public Message parse(ByteBuffer buf, int length)
+            throws InvalidMessageException
+        {
+            long now = System.currentTimeMillis();
+            
+            boolean response = (buf.get() != (byte) 0);
+            int count = buf.getInt();
+            List<Peer> peers = new ArrayList<Peer>(count);
+            
+            for (int i = 0; i < count; i++) {
+                long id = buf.getLong();
+                String hostname = readString(buf);
+                int port = buf.getInt();
+                String userAgent = readString(buf);
+                long age = buf.getLong();
                 
-                return new PeerExchangeMessage(peers, response);
+                peers.add(new Peer(id, hostname, port, userAgent,
+                    now - age));
             }
-        });
-    }
+            
+            return new PeerExchangeMessage(peers, response);
+        }
+    };
 }
@@ -0,0 +1,170 @@
+package commune.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A request for the piece hashes of a resource, or a response carrying
+ * some of them.
+ *
+ * A resource's piece hashes are the SHA-1 hashes of its 1 MB pieces, whose
+ * own hash is the resource's root hash. A response carries a run of
+ * consecutive hashes, starting at a given piece; the hashes of a large
+ * resource are split across several responses so that each fits in a
+ * frame. A response with a total of {@link UNAVAILABLE} means that the
+ * hashes cannot be sent. Only peers that report the <code>PIECELIST</code>
+ * attribute understand these messages.
+ */
+public class PieceListMessage extends Message {
+    public static final short CODE = 0x13;
+    
+    /** The length of each piece hash. */
+    public static final int HASH_LENGTH = 20;
+    
+    /** The total sent when the resource's hashes are not available. */
+    public static final int UNAVAILABLE = -1;
+    
+    private int id;
+    private boolean response;
+    private String path;
+    private int total;
+    private int first;
+    private byte[][] hashes;
+    
+    /**
+     * Creates a request for the piece hashes of a resource.
+     */
+    public PieceListMessage(int id, String path) {
+        this(id, false, path, 0, 0, new byte[0][]);
+    }
+    
+    /**
+     * Creates a response carrying some of the piece hashes of a resource.
+     * @param total the number of pieces in the resource, or
+     *        {@link UNAVAILABLE}
+     * @param first the index of the first piece whose hash is carried
+     * @param hashes the hashes carried
+     */
+    public PieceListMessage(int id, String path, int total, int first,
+        byte[][] hashes)
+    {
+        this(id, true, path, total, first, hashes);
+    }
+    
+    private PieceListMessage(int id, boolean response, String path,
+        int total, int first, byte[][] hashes)
+    {
+        super(CODE);
+        this.id = id;
+        this.response = response;
+        this.path = path;
+        this.total = total;
+        this.first = first;
+        this.hashes = hashes;
+    }
+    
+    /**
+     * Returns the number of hashes that fit in a response of at most the
+     * given length.
+     */
+    public static int getCapacity(String path, int frameSize) {
+        return (frameSize - HEADER_LENGTH - 4 - 1 - stringLength(path) -
+            12) / HASH_LENGTH;
+    }
+    
+    /**
+     * Returns the client's identifier for the request.
+     * @return client's identifier for the request
+     */
+    public int getID() {
+        return id;
+    }
+    
+    /**
+     * Returns true if this is a response; false if it is a request.
+     * @return true if this is a response; false if it is a request
+     */
+    public boolean isResponse() {
+        return response;
+    }
+    
+    /**
+     * Returns the path of the resource.
+     * @return path of the resource
+     */
+    public String getPath() {
+        return path;
+    }
+    
+    /**
+     * Returns the number of pieces in the resource, or {@link UNAVAILABLE}.
+     * @return number of pieces in the resource, or {@link UNAVAILABLE}
+     */
+    public int getTotal() {
+        return total;
+    }
+    
+    /**
+     * Returns the index of the first piece whose hash is carried.
+     * @return index of the first piece whose hash is carried
+     */
+    public int getFirst() {
+        return first;
+    }
+    
+    /**
+     * Returns the hashes carried by this message.
+     * @return hashes carried by this message
+     */
+    public byte[][] getHashes() {
+        return hashes;
+    }
+    
+    public int encodedLength() {
+        return HEADER_LENGTH + 4 + 1 + stringLength(getPath()) +
+            (isResponse() ? 12 + hashes.length * HASH_LENGTH : 0);
+    }
+    
+    public void encodeTo(ByteBuffer destination) {
+        writeHeader(destination, encodedLength());
+        destination.putInt(getID());
+        destination.put((byte) (isResponse() ? 1 : 0));
+        writeString(destination, getPath());
+        if (isResponse()) {
+            destination.putInt(total);
+            destination.putInt(first);
+            destination.putInt(hashes.length);
+            for (byte[] hash : hashes)
+                destination.put(hash);
+        }
+    }
+    
+    /**
+     * Parses the body of a piece list message.
+     */
+    static final MessageParser PARSER = new MessageParser() {
+        public Message parse(ByteBuffer buf, int length)
+            throws InvalidMessageException
+        {
+            int id = buf.getInt();
+            boolean response = (buf.get() != (byte) 0);
+            String path = readString(buf);
+            if (!response)
+                return new PieceListMessage(id, path);
+            
+            int total = buf.getInt();
+            int first = buf.getInt();
+            int count = buf.getInt();
+            if (count < 0 || count > (buf.limit() - buf.position()) /
+                HASH_LENGTH)
+            {
+                throw new InvalidMessageException("Piece hashes overrun " +
+                    "message.");
+            }
+            
+            byte[][] hashes = new byte[count][HASH_LENGTH];
+            for (byte[] hash : hashes)
+                buf.get(hash);
+            return new PieceListMessage(id, path, total, first, hashes);
+        }
+    };
+}
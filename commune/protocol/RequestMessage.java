@@ -5,19 +5,39 @@ import java.nio.ByteBuffer;
 public class RequestMessage extends Message {
     public static final short CODE = 0x10;
     
+    /** A range length that extends to the end of the resource. */
+    public static final long TO_END = -1L;
+    
     private int id;
     private String path;
     private boolean hypothetical;
+    private long offset;
+    private long length;
     
     public RequestMessage(int id, String path) {
         this(id, path, false);
     }
     
     public RequestMessage(int id, String path, boolean hypothetical) {
+        this(id, path, hypothetical, 0L, TO_END);
+    }
+    
+    /**
+     * Creates a request for part of a resource. Only peers that report the
+     * <code>RANGE</code> attribute understand ranges; others send the whole
+     * resource.
+     * @param offset the offset of the first byte wanted
+     * @param length the number of bytes wanted, or {@link TO_END}
+     */
+    public RequestMessage(int id, String path, boolean hypothetical,
+        long offset, long length)
+    {
         super(CODE);
         this.id = id;
         this.path = path;
         this.hypothetical = hypothetical;
+        this.offset = offset;
+        this.length = length;
     }
     
     /**
@@ -44,26 +64,74 @@ public class RequestMessage extends Message {
         return hypothetical;
     }
     
-    public ByteBuffer getBytes() {
-        return formatMessage(getID(), getPath(), isHypothetical());
+    /**
+     * Returns true if this request asks for only part of the resource; false
+     * if otherwise.
+     * @return true if this request asks for only part of the resource; false
+     *         if otherwise
+     */
+    public boolean hasRange() {
+        return offset != 0L || length != TO_END;
     }
     
-    static {
-        Message.addParser(CODE, new MessageParser() {
-            public Message parse(ByteBuffer buf, int length)
-                throws InvalidMessageException
-            {
-                int id = buf.getInt();
-                String path = readString(buf);
-                // backwards-compatible, because why not?
-                boolean hasHypotheticalField =
-                    (length > HEADER_LENGTH + 4 + path.length() + 2);
-                boolean hypothetical = (hasHypotheticalField)
-                    ? (buf.get() != (byte) 0)
-                    : false;
-                
-                return new RequestMessage(id, path, hypothetical);
-            }
-        });
+    /**
+     * Returns the offset of the first byte requested.
+     * @return offset of the first byte requested
+     */
+    public long getOffset() {
+        return offset;
+    }
+    
+    /**
+     * Returns the number of bytes requested, or {@link TO_END} if the rest
+     * of the resource is requested.
+     * @return number of bytes requested, or {@link TO_END}
+     */
+    public long getLength() {
+        return length;
     }
+    
+    public int encodedLength() {
+        return HEADER_LENGTH + 4 + stringLength(getPath()) + 1 +
+            (hasRange() ? 16 : 0);
+    }
+    
+    public void encodeTo(ByteBuffer destination) {
+        writeHeader(destination, encodedLength());
+        destination.putInt(getID());
+        writeString(destination, getPath());
+        destination.put((byte) (isHypothetical() ? 1 : 0));
+        if (hasRange()) {
+            destination.putLong(getOffset());
+            destination.putLong(getLength());
+        }
+    }
+    
+    /**
+     * Parses the body of a request message.
+     */
+    static final MessageParser PARSER = new MessageParser() {
+        public Message parse(ByteBuffer buf, int length)
+            throws InvalidMessageException
+        {
+            int id = buf.getInt();
+            String path = readString(buf);
+            // backwards-compatible, because why not?
+            boolean hasHypotheticalField =
+                (length > HEADER_LENGTH + 4 + stringLength(path));
+            boolean hypothetical = (hasHypotheticalField)
+                ? (buf.get() != (byte) 0)
+                : false;
+            
+            long offset = 0L;
+            long rangeLength = TO_END;
+            if (buf.limit() - buf.position() >= 16) {
+                offset = buf.getLong();
+                rangeLength = buf.getLong();
+            }
+            
+            return new RequestMessage(id, path, hypothetical, offset,
+                rangeLength);
+        }
+    };
 }
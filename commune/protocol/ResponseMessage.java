@@ -11,6 +11,7 @@ public class ResponseMessage extends Message {
     private long fileLength;
     private String contentType;
     private byte[] digest;
+    private byte[] rootDigest;
     
     public ResponseMessage(int id, short statusCode, String statusDescription)
     {
@@ -19,6 +20,13 @@ public class ResponseMessage extends Message {
     
     public ResponseMessage(int id, short statusCode, String statusDescription,
         long fileLength, String contentType, byte[] digest)
+    {
+        this(id, statusCode, statusDescription, fileLength, contentType,
+            digest, null);
+    }
+    
+    public ResponseMessage(int id, short statusCode, String statusDescription,
+        long fileLength, String contentType, byte[] digest, byte[] rootDigest)
     {
         super(CODE);
         this.id = id;
@@ -29,6 +37,7 @@ public class ResponseMessage extends Message {
         if (this.contentType == null)
             this.contentType = "application/octet-stream";
         this.digest = digest;
+        this.rootDigest = rootDigest;
     }
     
     /**
@@ -79,36 +88,83 @@ public class ResponseMessage extends Message {
         return digest;
     }
     
-    public ByteBuffer getBytes() {
-        return formatMessage(getID(), getStatusCode(),
-            getStatusDescription(), getFileLength(), getContentType(),
-            (digest != null ? digest.length : 0),
-            ByteBuffer.wrap(digest != null ? digest : new byte[0]));
+    /**
+     * Returns the root hash of the requested file's pieces, if the
+     * responding peer sent one.
+     * @return root hash of the requested file's pieces, or
+     *         <code>null</code>
+     */
+    public byte[] getRootDigest() {
+        return rootDigest;
+    }
+    
+    public int encodedLength() {
+        return HEADER_LENGTH + 4 + 2 + stringLength(getStatusDescription()) +
+            8 + stringLength(getContentType()) + 4 +
+            (digest != null ? digest.length : 0) +
+            (rootDigest != null ? 4 + rootDigest.length : 0);
     }
     
-    static {
-        Message.addParser(CODE, new MessageParser() {
-            public Message parse(ByteBuffer buf, int length)
-                throws InvalidMessageException
-            {
-                int clientID = buf.getInt();
-                short statusCode = buf.getShort();
-                String statusDescription = readString(buf);
-                long fileLength = buf.getLong();
-                String contentType = readString(buf);
-                
-                byte[] digest = null;
-                if (buf.position() < buf.limit()) {
-                    int digestLength = buf.getInt();
-                    if (digestLength > 0) {
-                        digest = new byte[digestLength];
-                        buf.get(digest);
-                    }
-                }
-                
-                return new ResponseMessage(clientID, statusCode,
-                    statusDescription, fileLength, contentType, digest);
-            }
-        });
+    public void encodeTo(ByteBuffer destination) {
+        writeHeader(destination, encodedLength());
+        destination.putInt(getID());
+        destination.putShort(getStatusCode());
+        writeString(destination, getStatusDescription());
+        destination.putLong(getFileLength());
+        writeString(destination, getContentType());
+        if (digest != null) {
+            destination.putInt(digest.length);
+            destination.put(digest);
+        } else {
+            destination.putInt(0);
+        }
+        
+        // Peers that do not know about root hashes ignore the extra field.
+        if (rootDigest != null) {
+            destination.putInt(rootDigest.length);
+            destination.put(rootDigest);
+        }
+    }
+    
+    /**
+     * Parses the body of a response message.
+     */
+    static final MessageParser PARSER = new MessageParser() {
+        public Message parse(ByteBuffer buf, int length)
+            throws InvalidMessageException
+        {
+            int clientID = buf.getInt();
+            short statusCode = buf.getShort();
+            String statusDescription = readString(buf);
+            long fileLength = buf.getLong();
+            String contentType = readString(buf);
+            
+            byte[] digest = readDigest(buf);
+            byte[] rootDigest = readDigest(buf);
+            
+            return new ResponseMessage(clientID, statusCode,
+                statusDescription, fileLength, contentType, digest,
+                rootDigest);
+        }
+    };
+    
+    /**
+     * Reads an optional length-prefixed digest.
+     */
+    private static byte[] readDigest(ByteBuffer buf)
+        throws InvalidMessageException
+    {
+        if (buf.limit() - buf.position() < 4)
+            return null;
+        
+        int digestLength = buf.getInt();
+        if (digestLength <= 0)
+            return null;
+        if (digestLength > buf.limit() - buf.position())
+            throw new InvalidMessageException("Digest overruns message.");
+        
+        byte[] digest = new byte[digestLength];
+        buf.get(digest);
+        return digest;
     }
 }
@@ -1,19 +1,24 @@
 package commune.source;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.io.IOException;
 import java.net.FileNameMap;
 import java.net.URLConnection;
 
 /**
  * Represents a concrete file that is available to be served to clients.
+ *
+ * The file's attributes are read once, when the object is created, so that
+ * describing the file costs a single lookup and never opens it.
  */
 public class AvailableFile implements AvailableResource {
     private File file;
+    private long size;
+    private long lastModified;
     private static FileNameMap filenameMap = URLConnection.getFileNameMap();
     
     /**
@@ -23,10 +28,16 @@ public class AvailableFile implements AvailableResource {
      *         if it is not a file, or cannot be read by this application
      */
     public AvailableFile(File file) {
-        if (!file.exists()) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(),
+                BasicFileAttributes.class);
+        } catch (IOException e) {
             throw new IllegalArgumentException("The given file (" + file +
                 ") does not exist.");
-        } else if (!file.isFile()) {
+        }
+        
+        if (!attributes.isRegularFile()) {
             throw new IllegalArgumentException("The given path (" + file +
                 ") is not a file.");
         } else if (!file.canRead()) {
@@ -35,6 +46,8 @@ public class AvailableFile implements AvailableResource {
         }
         
         this.file = file;
+        size = attributes.size();
+        lastModified = attributes.lastModifiedTime().toMillis();
     }
     
     /**
@@ -50,7 +63,16 @@ public class AvailableFile implements AvailableResource {
      * @return size of the file
      */
     public long getSize() {
-        return file.length();
+        return size;
+    }
+    
+    /**
+     * Returns the time at which the file was last modified.
+     * @return time at which the file was last modified, in milliseconds
+     *         since the epoch
+     */
+    public long getLastModified() {
+        return lastModified;
     }
     
     /**
@@ -62,12 +84,67 @@ public class AvailableFile implements AvailableResource {
     }
     
     /**
-     * Opens an output stream through which the file can be read.
+     * Returns the SHA-1 digest of the file. The digest is taken from the
+     * digest cache if the file has not changed since it was last hashed.
+     * @return SHA-1 digest of the file
      */
-    public MappedByteBuffer read() throws IOException {
-        FileInputStream stream = new FileInputStream(file);
-        FileChannel channel = stream.getChannel();
-        
-        return channel.map(FileChannel.MapMode.READ_ONLY, 0L, getSize());
+    public byte[] getDigest() throws IOException {
+        return DigestCache.getDefault().getDigest(file, DigestCache.SHA1);
+    }
+    
+    /**
+     * Returns the SHA-1 digest of the file if it is cached. If it is not,
+     * the file is hashed in the background so that a later call finds it.
+     * @return the file's digest, or <code>null</code> if it is not cached
+     */
+    public byte[] getCachedDigest() {
+        return getCached(DigestCache.SHA1);
+    }
+    
+    /**
+     * Returns the root hash of the file's pieces. The hash is taken from
+     * the digest cache if the file has not changed since it was last
+     * hashed.
+     * @return root hash of the file's pieces
+     */
+    public byte[] getRootDigest() throws IOException {
+        return DigestCache.getDefault().getDigest(file,
+            DigestCache.PIECE_ROOT);
+    }
+    
+    /**
+     * Returns the root hash of the file's pieces if it is cached. If it is
+     * not, the file is hashed in the background so that a later call finds
+     * it.
+     * @return the file's root hash, or <code>null</code> if it is not cached
+     */
+    public byte[] getCachedRootDigest() {
+        return getCached(DigestCache.PIECE_ROOT);
+    }
+    
+    /**
+     * Returns the hashes of the file's pieces. They are taken from the
+     * digest cache if the file's pieces have been hashed since the
+     * application started, and the file has not changed since.
+     * @return hashes of the file's pieces
+     */
+    public PieceDigest getPieces() throws IOException {
+        return DigestCache.getDefault().getPieces(file);
+    }
+    
+    private byte[] getCached(int kind) {
+        DigestCache cache = DigestCache.getDefault();
+        byte[] digest = cache.getCached(file, kind, size, lastModified);
+        if (digest == null)
+            cache.computeLater(file, kind);
+        return digest;
+    }
+    
+    /**
+     * Opens a channel through which the file can be read. The caller is
+     * responsible for closing it.
+     */
+    public FileChannel open() throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
     }
 }
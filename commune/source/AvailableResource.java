@@ -1,6 +1,6 @@
 package commune.source;
 
-import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.io.IOException;
 
 /**
@@ -10,5 +10,40 @@ import java.io.IOException;
 public interface AvailableResource {
     public long getSize();
     public String getContentType();
-    public ByteBuffer read() throws IOException;
+    
+    /**
+     * Returns the SHA-1 digest of the resource, computing it if necessary.
+     * This may block for as long as it takes to read the whole resource.
+     */
+    public byte[] getDigest() throws IOException;
+    
+    /**
+     * Returns the SHA-1 digest of the resource if it is already known,
+     * without reading the resource's contents.
+     * @return the resource's digest, or <code>null</code> if it is not known
+     */
+    public byte[] getCachedDigest();
+    
+    /**
+     * Returns the root hash of the resource's pieces (see
+     * {@link PieceDigest}), computing it if necessary. The pieces are hashed
+     * in parallel, but this may still block for a while.
+     */
+    public byte[] getRootDigest() throws IOException;
+    
+    /**
+     * Returns the root hash of the resource's pieces if it is already known,
+     * without reading the resource's contents.
+     * @return the resource's root hash, or <code>null</code> if it is not
+     *         known
+     */
+    public byte[] getCachedRootDigest();
+    
+    /**
+     * Returns the hashes of the resource's pieces, computing them if
+     * necessary.
+     */
+    public PieceDigest getPieces() throws IOException;
+    
+    public FileChannel open() throws IOException;
 }
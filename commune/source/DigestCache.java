@@ -0,0 +1,534 @@
+package commune.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A cache of the digests of served files.
+ *
+ * Two kinds of digest are kept: the {@link SHA1} hash of the whole file,
+ * and the {@link PIECE_ROOT} hash of its pieces (see {@link PieceDigest}).
+ * The hashes of the pieces themselves are also kept, but only in memory.
+ *
+ * Hashing a large file costs a full read of it, which is far too much to
+ * pay every time a peer asks about the file. A digest is remembered along
+ * with the length and modification time that the file had when it was
+ * hashed, and is used for as long as both still match.
+ *
+ * The cache is kept in an index file, so that digests survive a restart.
+ * The index is a header followed by fixed-layout records, one for each
+ * digest of each file, and is read by mapping it into memory. New digests
+ * are appended to it; records made stale by later ones are dropped when the
+ * index is next loaded.
+ */
+public class DigestCache {
+    /** The SHA-1 hash of the whole file. */
+    public static final int SHA1 = 0;
+    
+    /** The root hash of the file's pieces. */
+    public static final int PIECE_ROOT = 1;
+    
+    private static final int KIND_COUNT = 2;
+    private static final int MAGIC = 0x43444958; // "CDIX"
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 8;
+    private static final int DIGEST_LENGTH = 20;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final DigestCache DEFAULT_CACHE = new DigestCache(
+        new File(System.getProperty("commune.digests", "digests.idx")));
+    
+    private File indexFile;
+    private FileChannel index;
+    private Map<String, Entry> entries;
+    private Map<String, FutureTask<byte[]>> pending;
+    private ExecutorService digestService;
+    
+    /**
+     * Creates a new digest cache, loading any digests already in the given
+     * index file.
+     * @param indexFile the file in which digests are kept
+     */
+    public DigestCache(File indexFile) {
+        this.indexFile = indexFile;
+        index = null;
+        entries = new HashMap<String, Entry>();
+        pending = new HashMap<String, FutureTask<byte[]>>();
+        digestService = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DigestCache");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        
+        try {
+            load();
+        } catch (IOException e) {
+            System.err.printf("warning: digest index %s could not be " +
+                "loaded: %s%n", indexFile, e.getMessage());
+        }
+    }
+    
+    /**
+     * Returns the cache shared by the whole application. Its index file is
+     * named by the <code>commune.digests</code> system property.
+     * @return cache shared by the whole application
+     */
+    public static DigestCache getDefault() {
+        return DEFAULT_CACHE;
+    }
+    
+    /**
+     * Returns the given kind of digest of the given file if it is cached
+     * and still current. The file's contents are never read.
+     * @param kind {@link SHA1} or {@link PIECE_ROOT}
+     * @return the file's digest, or <code>null</code> if it is not known
+     */
+    public byte[] getCached(File file, int kind) {
+        return getCached(file, kind, file.length(), file.lastModified());
+    }
+    
+    /**
+     * Returns the given kind of digest of the given file if it is cached
+     * and was computed when the file had the given length and modification
+     * time. This spares a caller that has already read the file's
+     * attributes from reading them again.
+     * @param kind {@link SHA1} or {@link PIECE_ROOT}
+     * @return the file's digest, or <code>null</code> if it is not known
+     */
+    public byte[] getCached(File file, int kind, long length, long modified)
+    {
+        String key = getKey(file);
+        
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null || !entry.matches(length, modified) ||
+                entry.digests[kind] == null)
+            {
+                return null;
+            }
+            return entry.digests[kind].clone();
+        }
+    }
+    
+    /**
+     * Returns the given kind of digest of the given file, hashing the file
+     * on the calling thread if the digest is not cached. If the file is
+     * already being hashed, waits for that to finish instead.
+     * @param kind {@link SHA1} or {@link PIECE_ROOT}
+     * @throws IOException if the file could not be read
+     */
+    public byte[] getDigest(File file, int kind) throws IOException {
+        byte[] digest = getCached(file, kind);
+        if (digest != null)
+            return digest;
+        
+        FutureTask<byte[]> task;
+        boolean created;
+        synchronized (entries) {
+            String key = getKey(file);
+            task = pending.get(kind + ":" + key);
+            created = (task == null);
+            if (created)
+                task = startTask(key, kind, file);
+        }
+        
+        if (created)
+            task.run();
+        return await(task);
+    }
+    
+    /**
+     * Returns the piece hashes of the given file. Only root hashes are kept
+     * in the index, so the file's pieces are hashed again, on the calling
+     * thread, if they have not been hashed since the application started.
+     * @throws IOException if the file could not be read, or changed while
+     *         it was being read
+     */
+    public PieceDigest getPieces(File file) throws IOException {
+        String key = getKey(file);
+        long length = file.length();
+        long modified = file.lastModified();
+        
+        FutureTask<byte[]> task;
+        boolean created;
+        synchronized (entries) {
+            PieceDigest pieces = getCachedPieces(key, length, modified);
+            if (pieces != null)
+                return pieces;
+            
+            task = pending.get(PIECE_ROOT + ":" + key);
+            created = (task == null);
+            if (created)
+                task = startTask(key, PIECE_ROOT, file);
+        }
+        
+        if (created)
+            task.run();
+        await(task);
+        
+        synchronized (entries) {
+            PieceDigest pieces = getCachedPieces(key, length, modified);
+            if (pieces == null) {
+                throw new IOException("File changed while it was being " +
+                    "hashed.");
+            }
+            return pieces;
+        }
+    }
+    
+    /**
+     * Returns the piece hashes kept in memory for the given version of a
+     * file. Must be called while holding the lock on <code>entries</code>.
+     */
+    private PieceDigest getCachedPieces(String key, long length,
+        long modified)
+    {
+        Entry entry = entries.get(key);
+        return (entry != null && entry.matches(length, modified))
+            ? entry.pieces
+            : null;
+    }
+    
+    /**
+     * Arranges for the given kind of digest of the given file to be
+     * computed in the background if it is not cached, so that a later
+     * lookup finds it.
+     * @param kind {@link SHA1} or {@link PIECE_ROOT}
+     */
+    public void computeLater(File file, int kind) {
+        if (getCached(file, kind) != null)
+            return;
+        
+        synchronized (entries) {
+            String key = getKey(file);
+            if (!pending.containsKey(kind + ":" + key))
+                digestService.execute(startTask(key, kind, file));
+        }
+    }
+    
+    /**
+     * Creates a task that hashes the given file and records its digest.
+     * Must be called while holding the lock on <code>entries</code>.
+     */
+    private FutureTask<byte[]> startTask(final String key, final int kind,
+        final File file)
+    {
+        final String pendingKey = kind + ":" + key;
+        FutureTask<byte[]> task = new FutureTask<byte[]>(
+            new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    try {
+                        return compute(key, kind, file);
+                    } finally {
+                        synchronized (entries) {
+                            pending.remove(pendingKey);
+                        }
+                    }
+                }
+            });
+        pending.put(pendingKey, task);
+        return task;
+    }
+    
+    private byte[] await(FutureTask<byte[]> task) throws IOException {
+        try {
+            return task.get().clone();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while hashing file.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("Failed to hash file.", cause);
+        }
+    }
+    
+    /**
+     * Hashes the given file and records its digest. The digest is only
+     * recorded if the file did not change while it was being read.
+     */
+    private byte[] compute(String key, int kind, File file)
+        throws IOException
+    {
+        long length = file.length();
+        long modified = file.lastModified();
+        PieceDigest pieces = null;
+        byte[] result;
+        
+        FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.READ);
+        try {
+            if (kind == PIECE_ROOT) {
+                pieces = PieceDigest.compute(channel, length);
+                result = pieces.getRoot();
+            } else {
+                result = hashWhole(channel);
+            }
+        } finally {
+            channel.close();
+        }
+        
+        if (file.length() == length && file.lastModified() == modified) {
+            store(key, kind, length, modified, result);
+            if (pieces != null) {
+                synchronized (entries) {
+                    // The piece hashes are only kept in memory.
+                    Entry entry = entries.get(key);
+                    if (entry != null && entry.matches(length, modified))
+                        entry.pieces = pieces;
+                }
+            }
+        }
+        return result;
+    }
+    
+    private static byte[] hashWhole(FileChannel channel) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 is not available.", e);
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        return digest.digest();
+    }
+    
+    private void store(String key, int kind, long length, long modified,
+        byte[] digest)
+    {
+        synchronized (entries) {
+            put(key, kind, length, modified, digest);
+            ByteBuffer record = encode(key, kind, length, modified, digest);
+            if (index == null || record == null)
+                return;
+            
+            try {
+                long position = index.size();
+                while (record.hasRemaining())
+                    position += index.write(record, position);
+                index.force(false);
+            } catch (IOException e) {
+                System.err.printf("warning: digest index %s could not be " +
+                    "written: %s%n", indexFile, e.getMessage());
+                closeIndex();
+            }
+        }
+    }
+    
+    /**
+     * Records a digest in memory. A digest for a different version of the
+     * file replaces every digest of the old version.
+     */
+    private void put(String key, int kind, long length, long modified,
+        byte[] digest)
+    {
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.matches(length, modified)) {
+            entry = new Entry(length, modified);
+            entries.put(key, entry);
+        }
+        entry.digests[kind] = digest;
+    }
+    
+    /**
+     * Reads the digests in the index file, and opens the index for
+     * appending. If the index holds stale records, or ends with a record
+     * that was only partly written, it is rewritten without them.
+     */
+    private void load() throws IOException {
+        int records = 0;
+        boolean damaged = false;
+        
+        if (indexFile.length() >= HEADER_LENGTH) {
+            FileChannel channel = FileChannel.open(indexFile.toPath(),
+                StandardOpenOption.READ);
+            try {
+                MappedByteBuffer map = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+                int version = (map.getInt() == MAGIC) ? map.getInt() : -1;
+                if (version < 1 || version > VERSION) {
+                    damaged = true;
+                } else {
+                    // Version 1 indexes only held whole-file digests.
+                    damaged = (version != VERSION);
+                    while (map.hasRemaining()) {
+                        if (!decode(map, version)) {
+                            damaged = true;
+                            break;
+                        }
+                        records++;
+                    }
+                }
+            } finally {
+                channel.close();
+            }
+        } else if (indexFile.exists()) {
+            damaged = true;
+        }
+        
+        if (!indexFile.exists() || damaged || records > countDigests())
+            rewrite();
+        index = FileChannel.open(indexFile.toPath(), StandardOpenOption.WRITE);
+    }
+    
+    /**
+     * Reads one record into the cache.
+     * @return true if a whole record was read; false if it was truncated
+     */
+    private boolean decode(ByteBuffer map, int version) {
+        if (map.remaining() < 2)
+            return false;
+        int keyLength = map.getShort() & 0xFFFF;
+        int kindLength = (version > 1) ? 1 : 0;
+        if (map.remaining() < keyLength + 16 + kindLength + DIGEST_LENGTH)
+            return false;
+        
+        byte[] keyBytes = new byte[keyLength];
+        map.get(keyBytes);
+        long length = map.getLong();
+        long modified = map.getLong();
+        int kind = (version > 1) ? map.get() : SHA1;
+        byte[] digest = new byte[DIGEST_LENGTH];
+        map.get(digest);
+        
+        if (kind >= 0 && kind < KIND_COUNT)
+            put(new String(keyBytes, UTF8), kind, length, modified, digest);
+        return true;
+    }
+    
+    /**
+     * Returns the number of digests held in memory.
+     */
+    private int countDigests() {
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            for (byte[] digest : entry.digests) {
+                if (digest != null)
+                    count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Returns the index record for the given digest, or <code>null</code>
+     * if the key is too long to be recorded.
+     */
+    private static ByteBuffer encode(String key, int kind, long length,
+        long modified, byte[] digest)
+    {
+        byte[] keyBytes = key.getBytes(UTF8);
+        if (keyBytes.length > 0xFFFF)
+            return null;
+        ByteBuffer record = ByteBuffer.allocate(2 + keyBytes.length + 16 +
+            1 + DIGEST_LENGTH);
+        
+        record.putShort((short) keyBytes.length);
+        record.put(keyBytes);
+        record.putLong(length);
+        record.putLong(modified);
+        record.put((byte) kind);
+        record.put(digest);
+        record.flip();
+        return record;
+    }
+    
+    /**
+     * Writes the current entries to a new index file, which then replaces
+     * the old one.
+     */
+    private void rewrite() throws IOException {
+        File parent = indexFile.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("digests", ".tmp", parent);
+        
+        FileChannel channel = FileChannel.open(temp.toPath(),
+            StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            write(channel, header);
+            
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                for (int kind = 0; kind < KIND_COUNT; kind++) {
+                    if (entry.digests[kind] == null)
+                        continue;
+                    ByteBuffer record = encode(e.getKey(), kind,
+                        entry.length, entry.modified, entry.digests[kind]);
+                    if (record != null)
+                        write(channel, record);
+                }
+            }
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+        
+        Files.move(temp.toPath(), indexFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    private static void write(FileChannel channel, ByteBuffer buffer)
+        throws IOException
+    {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+    
+    private void closeIndex() {
+        try {
+            index.close();
+        } catch (IOException ignored) { /* ignore */ }
+        index = null;
+    }
+    
+    private static String getKey(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+    
+    /**
+     * The cached digests of a file, with the file length and modification
+     * time for which they are valid.
+     */
+    private static class Entry {
+        final long length;
+        final long modified;
+        final byte[][] digests;
+        PieceDigest pieces;
+        
+        Entry(long length, long modified) {
+            this.length = length;
+            this.modified = modified;
+            digests = new byte[KIND_COUNT][];
+            pieces = null;
+        }
+        
+        boolean matches(long length, long modified) {
+            return this.length == length && this.modified == modified;
+        }
+    }
+}
@@ -35,9 +35,11 @@ public class DirectorySource implements Source {
         
         File requested = new File(directory, path);
         
-        if (!requested.exists() || !requested.isFile() || !requested.canRead())
+        try {
+            return new AvailableFile(requested);
+        } catch (IllegalArgumentException e) {
+            // The path does not name a readable file.
             return null;
-        
-        return new AvailableFile(requested);
+        }
     }
 }
@@ -0,0 +1,184 @@
+package commune.source;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A digest of a file made up of the SHA-1 hashes of its pieces.
+ *
+ * The file is split into pieces of {@link PIECE_SIZE} bytes (the last piece
+ * may be shorter), and each piece is hashed on its own. Since the pieces
+ * are independent, they are hashed in parallel on a fork-join pool, so
+ * hashing a large file is not limited to one processor core. The root hash
+ * is the SHA-1 hash of the piece hashes, concatenated in order.
+ */
+public class PieceDigest {
+    /** The size of each piece, except perhaps the last. */
+    public static final int PIECE_SIZE = 1024 * 1024;
+    
+    /** The length of a piece hash or root hash. */
+    public static final int HASH_LENGTH = 20;
+    
+    private static final ForkJoinPool HASH_POOL = new ForkJoinPool();
+    private static final ThreadLocal<ByteBuffer> PIECE_BUFFERS =
+        new ThreadLocal<ByteBuffer>() {
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocateDirect(PIECE_SIZE);
+            }
+        };
+    
+    private byte[][] pieces;
+    private byte[] root;
+    
+    /**
+     * Creates a digest from the given piece hashes.
+     */
+    public PieceDigest(byte[][] pieces) {
+        this.pieces = pieces;
+        root = computeRoot(pieces);
+    }
+    
+    /**
+     * Hashes the first <code>length</code> bytes of the given file. The
+     * calling thread waits while the pieces are hashed in parallel.
+     * @throws IOException if the file could not be read
+     */
+    public static PieceDigest compute(FileChannel file, long length)
+        throws IOException
+    {
+        byte[][] pieces = new byte[getPieceCount(length)][];
+        HashTask task = new HashTask(file, length, pieces, 0, pieces.length);
+        
+        HASH_POOL.invoke(task);
+        if (task.error != null)
+            throw task.error;
+        return new PieceDigest(pieces);
+    }
+    
+    /**
+     * Returns the number of pieces in a file of the given length. An empty
+     * file has no pieces.
+     */
+    public static int getPieceCount(long length) {
+        return (int) ((length + PIECE_SIZE - 1) / PIECE_SIZE);
+    }
+    
+    /**
+     * Returns the SHA-1 hash of the given data.
+     */
+    public static byte[] hash(ByteBuffer data) {
+        MessageDigest digest = newDigest();
+        digest.update(data);
+        return digest.digest();
+    }
+    
+    /**
+     * Returns the root hash of the given piece hashes.
+     */
+    public static byte[] computeRoot(byte[][] pieces) {
+        MessageDigest digest = newDigest();
+        for (byte[] piece : pieces)
+            digest.update(piece);
+        return digest.digest();
+    }
+    
+    /**
+     * Returns the number of pieces.
+     * @return number of pieces
+     */
+    public int getPieceCount() {
+        return pieces.length;
+    }
+    
+    /**
+     * Returns the hash of the piece with the given index.
+     */
+    public byte[] getPiece(int index) {
+        return pieces[index].clone();
+    }
+    
+    /**
+     * Returns the root hash.
+     * @return root hash
+     */
+    public byte[] getRoot() {
+        return root.clone();
+    }
+    
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available.", e);
+        }
+    }
+    
+    /**
+     * Hashes a range of pieces, splitting it in half until each task hashes
+     * a single piece.
+     */
+    private static class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private FileChannel file;
+        private long length;
+        private byte[][] pieces;
+        private int start;
+        private int end;
+        IOException error;
+        
+        HashTask(FileChannel file, long length, byte[][] pieces, int start,
+            int end)
+        {
+            this.file = file;
+            this.length = length;
+            this.pieces = pieces;
+            this.start = start;
+            this.end = end;
+            error = null;
+        }
+        
+        protected void compute() {
+            if (end - start <= 1) {
+                if (start < end)
+                    hashPiece(start);
+                return;
+            }
+            
+            int middle = (start + end) >>> 1;
+            HashTask left = new HashTask(file, length, pieces, start, middle);
+            HashTask right = new HashTask(file, length, pieces, middle, end);
+            invokeAll(left, right);
+            error = (left.error != null) ? left.error : right.error;
+        }
+        
+        private void hashPiece(int index) {
+            long offset = (long) index * PIECE_SIZE;
+            int size = (int) Math.min(length - offset, (long) PIECE_SIZE);
+            
+            ByteBuffer buffer = PIECE_BUFFERS.get();
+            buffer.clear();
+            buffer.limit(size);
+            try {
+                while (buffer.hasRemaining()) {
+                    int read = file.read(buffer, offset + buffer.position());
+                    if (read < 0) {
+                        throw new IOException("File ended before piece " +
+                            index + ".");
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+                return;
+            }
+            
+            buffer.flip();
+            pieces[index] = hash(buffer);
+        }
+    }
+}